@@ -5,8 +5,17 @@ DROP TABLE IF EXISTS channels CASCADE;
 DROP TABLE IF EXISTS group_members CASCADE;
 DROP TABLE IF EXISTS groups CASCADE;
 DROP TABLE IF EXISTS messages CASCADE;
+DROP TABLE IF EXISTS conversations CASCADE;
+DROP TABLE IF EXISTS chat_read_state CASCADE;
+DROP TABLE IF EXISTS attachment_refs CASCADE;
+DROP TABLE IF EXISTS archived_segments CASCADE;
 DROP TABLE IF EXISTS users CASCADE;
 
+-- Trigram matching for name search (GIN indexes below)
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+-- Lets the message search index lead with conversation_id (GIN over a plain column)
+CREATE EXTENSION IF NOT EXISTS btree_gin;
+
 -- CORE TABLES
 
 -- Users table (enhanced with contact fields)
@@ -54,21 +63,70 @@ CREATE TABLE channels (
 
 -- MESSAGING TABLES
 
--- Messages table (enhanced)
+-- Conversations (one row per DM pair, group or channel; holds the message counter)
+CREATE TABLE conversations (
+    id VARCHAR(80) PRIMARY KEY, -- group/channel id, or 'smaller_user_id:larger_user_id' for DMs (byte order)
+    conversation_type VARCHAR(20) NOT NULL,
+    last_seq BIGINT NOT NULL DEFAULT 0,
+    last_message_at TIMESTAMP, -- timestamp of message last_seq, so the newest message is found in a single partition
+    last_version BIGINT NOT NULL DEFAULT 0 -- change counter: bumped by every insert, edit and delete in the conversation
+);
+
+-- Messages table, range-partitioned by month on timestamp (see ensure_message_partitions below).
+-- The primary key has to include the partition key, so rows are identified by (id, timestamp) and
+-- nothing can reference a message by id alone: replies and forwards are kept as plain ids.
 CREATE TABLE messages (
-    id VARCHAR(36) PRIMARY KEY,
+    id VARCHAR(36) NOT NULL,
     sender_id VARCHAR(36) REFERENCES users(id) ON DELETE SET NULL,
     receiver_id VARCHAR(36),
     receiver_type VARCHAR(20),
     content TEXT,
     media_type VARCHAR(100) DEFAULT 'TEXT',
     media_path TEXT,
-    timestamp TIMESTAMP WITHOUT TIME ZONE DEFAULT (NOW() AT TIME ZONE 'UTC'),
+    timestamp TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT (NOW() AT TIME ZONE 'UTC'),
     read_status VARCHAR(20) DEFAULT 'UNREAD',
-    reply_to_message_id VARCHAR(36) REFERENCES messages(id) ON DELETE SET NULL,
-    forwarded_from_id VARCHAR(36) REFERENCES messages(id) ON DELETE SET NULL,
+    reply_to_message_id VARCHAR(36),
+    forwarded_from_id VARCHAR(36),
     is_deleted BOOLEAN DEFAULT FALSE,
-    edited_at TIMESTAMP NULL
+    edited_at TIMESTAMP NULL,
+    conversation_id VARCHAR(80) NOT NULL REFERENCES conversations(id), -- set by trg_assign_message_seq
+    seq BIGINT, -- per-conversation position, assigned by trg_assign_message_seq
+    version BIGINT, -- conversation change counter at this row's last insert/edit/delete (see trg_bump_message_version)
+    -- Full-text search over the message text; deleted messages get no vector and never match
+    search_vector tsvector GENERATED ALWAYS AS (
+        CASE WHEN read_status = 'DELETED' THEN NULL ELSE to_tsvector('simple', COALESCE(content, '')) END
+    ) STORED,
+    PRIMARY KEY (id, timestamp)
+) PARTITION BY RANGE (timestamp);
+
+-- Read watermarks: everything up to last_read_seq in the chat has been seen by the user.
+-- Unread badges are conversations.last_seq - last_read_seq; ticks compare a message's seq with its peers' watermarks.
+CREATE TABLE chat_read_state (
+    user_id VARCHAR(36) REFERENCES users(id) ON DELETE CASCADE,
+    conversation_id VARCHAR(80) REFERENCES conversations(id) ON DELETE CASCADE,
+    last_read_seq BIGINT NOT NULL DEFAULT 0,
+    last_read_at TIMESTAMP,
+    PRIMARY KEY (user_id, conversation_id)
+);
+
+-- Reference counts of attachment blobs, maintained by trg_track_attachment_refs.
+-- Blobs whose count drops to zero are removed by the client's attachment garbage collector.
+CREATE TABLE attachment_refs (
+    media_path TEXT PRIMARY KEY,
+    ref_count INT NOT NULL DEFAULT 0
+);
+
+-- Months of a conversation that were moved out of messages into a segment file by the archiver.
+-- Reads that find seqs missing from messages look here; the path is relative to the archive directory.
+CREATE TABLE archived_segments (
+    conversation_id VARCHAR(80) NOT NULL,
+    month DATE NOT NULL,
+    file_path TEXT NOT NULL,
+    first_seq BIGINT NOT NULL,
+    last_seq BIGINT NOT NULL,
+    message_count INT NOT NULL,
+    archived_at TIMESTAMP DEFAULT NOW(),
+    PRIMARY KEY (conversation_id, month)
 );
 
 -- MEMBERSHIP TABLES
@@ -95,13 +153,7 @@ CREATE TABLE channel_subscribers (
 
 -- REAL-TIME FEATURES
 
--- Typing status
-CREATE TABLE typing_status (
-    chat_id VARCHAR(36) NOT NULL,
-    user_id VARCHAR(36) REFERENCES users(id) ON DELETE CASCADE NOT NULL,
-    last_typed TIMESTAMP WITHOUT TIME ZONE NOT NULL,
-    PRIMARY KEY (chat_id, user_id)
-);
+-- Typing indicators are not stored: clients exchange them as NOTIFY signals (see TypingService).
 
 
 -- INDEXES FOR PERFORMANCE
@@ -111,21 +163,40 @@ CREATE INDEX idx_users_username ON users (username);
 CREATE INDEX idx_users_display_name ON users (display_name);
 CREATE INDEX idx_users_status ON users (status);
 CREATE INDEX idx_users_last_seen ON users (last_seen);
+-- Name search: trigram GIN for substring/fuzzy matches, text_pattern_ops for 1-2 character prefixes
+CREATE INDEX idx_users_username_trgm ON users USING gin (username gin_trgm_ops);
+CREATE INDEX idx_users_display_name_trgm ON users USING gin (display_name gin_trgm_ops);
+CREATE INDEX idx_users_username_prefix ON users (LOWER(username) text_pattern_ops);
+CREATE INDEX idx_users_display_name_prefix ON users (LOWER(display_name) text_pattern_ops);
 
 -- Basic indexes for groups table
 CREATE INDEX idx_groups_creator ON groups (creator_id);
 CREATE INDEX idx_groups_name ON groups (name);
+CREATE INDEX idx_groups_name_trgm ON groups USING gin (name gin_trgm_ops);
+CREATE INDEX idx_groups_name_prefix ON groups (LOWER(name) text_pattern_ops);
 
 -- Basic indexes for channels table
 CREATE INDEX idx_channels_owner ON channels (owner_id);
 CREATE INDEX idx_channels_name ON channels (name);
 CREATE INDEX idx_channels_public ON channels (is_public);
+CREATE INDEX idx_channels_name_trgm ON channels USING gin (name gin_trgm_ops);
+CREATE INDEX idx_channels_name_prefix ON channels (LOWER(name) text_pattern_ops);
 
 -- Basic indexes for messages table
+-- Indexes on messages are created per partition. Time ranges are covered by partition pruning and retention
+-- is done by detaching whole partitions, so there is no separate timestamp index.
 CREATE INDEX idx_messages_sender ON messages (sender_id);
-CREATE INDEX idx_messages_receiver ON messages (receiver_id, receiver_type);
-CREATE INDEX idx_messages_timestamp ON messages (timestamp);
-CREATE INDEX idx_messages_read_status ON messages (read_status);
+-- Message search: the term and the user's conversations are intersected inside one index
+CREATE INDEX idx_messages_search ON messages USING gin (conversation_id, search_vector);
+-- History, incremental sync and pagination. Not UNIQUE: that would need the partition key; the conversations counter keeps seq unique.
+CREATE INDEX idx_messages_conversation_seq ON messages (conversation_id, seq);
+-- Change feed: rows inserted, edited or deleted since a client's last sync
+CREATE INDEX idx_messages_conversation_version ON messages (conversation_id, version);
+CREATE INDEX idx_archived_segments_seq ON archived_segments (conversation_id, last_seq); -- read-through by seq range
+CREATE INDEX idx_chat_read_state_conversation ON chat_read_state (conversation_id); -- peer watermarks for ticks
+-- A user's direct chats, by either half of the 'a:b' key (message search membership)
+CREATE INDEX idx_conversations_dm_first ON conversations (split_part(id, ':', 1)) WHERE conversation_type = 'USER';
+CREATE INDEX idx_conversations_dm_second ON conversations (split_part(id, ':', 2)) WHERE conversation_type = 'USER';
 
 -- Basic indexes for group_members table
 CREATE INDEX idx_group_members_group ON group_members (group_id);
@@ -137,10 +208,123 @@ CREATE INDEX idx_channel_subscribers_channel ON channel_subscribers (channel_id)
 CREATE INDEX idx_channel_subscribers_user ON channel_subscribers (user_id);
 CREATE INDEX idx_channel_subscribers_role ON channel_subscribers (role);
 
--- Basic indexes for typing_status table
-CREATE INDEX idx_typing_status_chat ON typing_status (chat_id);
-CREATE INDEX idx_typing_status_user ON typing_status (user_id);
-CREATE INDEX idx_typing_status_last_typed ON typing_status (last_typed);
+
+-- PARTITION MAINTENANCE
+
+-- Creates the monthly partitions of messages from last month up to months_ahead months from now.
+-- Called here and by the client on startup; inserts clamp their timestamp to a few days around now,
+-- so as long as this runs now and then every row has a partition. There is deliberately no DEFAULT
+-- partition: it would have to be scanned whenever a partition is added, and it rules out
+-- DETACH PARTITION ... CONCURRENTLY, which is how old months are taken out for archival.
+CREATE OR REPLACE FUNCTION ensure_message_partitions(months_ahead INT DEFAULT 3) RETURNS INT AS $$
+DECLARE
+  first_month DATE := (date_trunc('month', LOCALTIMESTAMP) - INTERVAL '1 month')::date;
+  month_start DATE;
+  partition_name TEXT;
+  created INT := 0;
+BEGIN
+  FOR i IN 0..months_ahead + 1 LOOP
+    month_start := (first_month + make_interval(months => i))::date;
+    partition_name := 'messages_' || to_char(month_start, 'YYYY_MM');
+    IF to_regclass(partition_name) IS NULL THEN
+      EXECUTE format('CREATE TABLE %I PARTITION OF messages FOR VALUES FROM (%L) TO (%L)',
+                     partition_name, month_start, (month_start + INTERVAL '1 month')::date);
+      created := created + 1;
+    END IF;
+  END LOOP;
+  RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT ensure_message_partitions();
+
+
+-- SEQUENCING AND READ STATE
+
+-- Every message gets the next number of its conversation, and the next change version. The counter row
+-- stays locked until the inserting transaction commits, so numbers become visible in order and without gaps.
+CREATE OR REPLACE FUNCTION assign_message_seq() RETURNS trigger AS $$
+DECLARE
+  conv TEXT;
+BEGIN
+  IF NEW.receiver_type = 'USER' THEN
+    -- COLLATE "C" keeps the order byte-wise, matching ChatDAO.conversationIdFor on the Java side.
+    conv := LEAST(NEW.sender_id COLLATE "C", NEW.receiver_id) || ':' || GREATEST(NEW.sender_id COLLATE "C", NEW.receiver_id);
+  ELSE
+    conv := NEW.receiver_id;
+  END IF;
+
+  INSERT INTO conversations (id, conversation_type, last_seq, last_message_at, last_version) VALUES (conv, NEW.receiver_type, 1, NEW.timestamp, 1)
+  ON CONFLICT (id) DO UPDATE SET last_seq = conversations.last_seq + 1, last_message_at = EXCLUDED.last_message_at,
+                                 last_version = conversations.last_version + 1
+  RETURNING last_seq, last_version INTO NEW.seq, NEW.version;
+  NEW.conversation_id := conv;
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_assign_message_seq
+BEFORE INSERT ON messages
+FOR EACH ROW EXECUTE FUNCTION assign_message_seq();
+
+-- Edits and deletes take the next change version of the conversation, in the same locked, gap-free
+-- order as inserts, so "everything after version v" is a complete list of what a client has missed.
+CREATE OR REPLACE FUNCTION bump_message_version() RETURNS trigger AS $$
+BEGIN
+  UPDATE conversations SET last_version = last_version + 1 WHERE id = NEW.conversation_id
+  RETURNING last_version INTO NEW.version;
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_bump_message_version
+BEFORE UPDATE OF content, media_type, media_path, read_status ON messages
+FOR EACH ROW
+WHEN (OLD.content IS DISTINCT FROM NEW.content OR OLD.media_type IS DISTINCT FROM NEW.media_type
+      OR OLD.media_path IS DISTINCT FROM NEW.media_path OR OLD.read_status IS DISTINCT FROM NEW.read_status)
+EXECUTE FUNCTION bump_message_version();
+
+-- Sending implies having read the chat up to that point, so the sender's own message never counts as unread.
+CREATE OR REPLACE FUNCTION advance_sender_watermark() RETURNS trigger AS $$
+BEGIN
+  IF NEW.sender_id IS NULL THEN
+    RETURN NEW;
+  END IF;
+
+  INSERT INTO chat_read_state (user_id, conversation_id, last_read_seq, last_read_at)
+  VALUES (NEW.sender_id, NEW.conversation_id, NEW.seq, NEW.timestamp)
+  ON CONFLICT (user_id, conversation_id) DO UPDATE
+    SET last_read_seq = EXCLUDED.last_read_seq, last_read_at = EXCLUDED.last_read_at
+    WHERE chat_read_state.last_read_seq < EXCLUDED.last_read_seq;
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_advance_sender_watermark
+AFTER INSERT ON messages
+FOR EACH ROW EXECUTE FUNCTION advance_sender_watermark();
+
+-- Counts references to each media_path so identical attachments can share one stored file.
+CREATE OR REPLACE FUNCTION track_attachment_refs() RETURNS trigger AS $$
+BEGIN
+  IF TG_OP = 'UPDATE' AND OLD.media_path IS NOT DISTINCT FROM NEW.media_path THEN
+    RETURN NULL;
+  END IF;
+
+  IF TG_OP IN ('UPDATE', 'DELETE') AND OLD.media_path IS NOT NULL THEN
+    UPDATE attachment_refs SET ref_count = ref_count - 1 WHERE media_path = OLD.media_path;
+  END IF;
+  IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.media_path IS NOT NULL THEN
+    INSERT INTO attachment_refs (media_path, ref_count) VALUES (NEW.media_path, 1)
+    ON CONFLICT (media_path) DO UPDATE SET ref_count = attachment_refs.ref_count + 1;
+  END IF;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_track_attachment_refs
+AFTER INSERT OR DELETE OR UPDATE OF media_path ON messages
+FOR EACH ROW EXECUTE FUNCTION track_attachment_refs();
 
 
 -- SAMPLE DATA (FOR TESTING)
@@ -160,6 +344,10 @@ INSERT INTO messages (id, sender_id, receiver_id, receiver_type, content, timest
 ('msg-2', 'user-2', 'user-1', 'USER', 'Hi John! I am good, thanks!', NOW() - INTERVAL '30 MINUTE', 'READ'),
 ('msg-3', 'user-1', 'user-3', 'USER', 'Want to grab lunch tomorrow?', NOW() - INTERVAL '15 MINUTE', 'UNREAD');
 
+-- John has read Jane's reply (senders' own watermarks are set by trg_advance_sender_watermark)
+UPDATE chat_read_state SET last_read_seq = 2, last_read_at = NOW() - INTERVAL '20 MINUTE'
+WHERE user_id = 'user-1' AND conversation_id = 'user-1:user-2';
+
 
 -- END OF SCHEMA
 
@@ -1,7 +1,8 @@
 CREATE OR REPLACE FUNCTION notify_new_message() RETURNS trigger AS $$
 DECLARE
   ch TEXT;
-  payload JSON;
+  payload JSONB;
+  full_payload JSONB;
   typ TEXT;
 BEGIN
   -- Use the modern, generic receiver_type column
@@ -10,12 +11,28 @@ BEGIN
   -- Build the notification channel name based on the receiver type and ID
   ch := typ || '_' || replace(NEW.receiver_id::text, '-', '');
 
-  payload := json_build_object(
+  payload := jsonb_build_object(
     'chatType', typ,
     'id', NEW.receiver_id::text,
-    'messageId', NEW.id::text
+    'messageId', NEW.id::text,
+    'senderId', NEW.sender_id::text
   );
 
+  -- The rest of the row as a positional array (see NotifyPayload), so listeners need not fetch it.
+  -- The sender's read watermark rides along: whoever posts has usually just read the chat.
+  -- NOTIFY payloads must stay under 8000 bytes; larger messages are announced by id only.
+  full_payload := payload || jsonb_build_object(
+    'm', jsonb_build_array(
+      NEW.content, NEW.media_type, NEW.media_path,
+      to_char(NEW.timestamp, 'YYYY-MM-DD"T"HH24:MI:SS.US'),
+      NEW.read_status, NEW.reply_to_message_id::text,
+      NEW.conversation_id, NEW.seq, NEW.version),
+    'senderReadSeq', (SELECT last_read_seq FROM chat_read_state
+                      WHERE user_id = NEW.sender_id AND conversation_id = NEW.conversation_id));
+  IF octet_length(full_payload::text) < 8000 THEN
+    payload := full_payload;
+  END IF;
+
   PERFORM pg_notify(ch, payload::text);
   RETURN NEW;
 END;
@@ -25,3 +42,11 @@ DROP TRIGGER IF EXISTS trg_notify_new_message ON messages;
 CREATE TRIGGER trg_notify_new_message
 AFTER INSERT ON messages
 FOR EACH ROW EXECUTE FUNCTION notify_new_message();
+
+-- Edits and deletes are announced the same way, with the changed row.
+DROP TRIGGER IF EXISTS trg_notify_message_change ON messages;
+CREATE TRIGGER trg_notify_message_change
+AFTER UPDATE ON messages
+FOR EACH ROW
+WHEN (OLD.version IS DISTINCT FROM NEW.version)
+EXECUTE FUNCTION notify_new_message();
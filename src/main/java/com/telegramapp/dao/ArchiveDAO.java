@@ -0,0 +1,11 @@
+package com.telegramapp.dao;
+
+import com.telegramapp.model.ArchivedSegment;
+
+import java.sql.SQLException;
+import java.util.List;
+
+public interface ArchiveDAO {
+    void saveSegments(List<ArchivedSegment> segments) throws SQLException; // One transaction; re-archiving a month replaces its rows
+    List<ArchivedSegment> findSegments(String conversationId, long fromSeq, long toSeq) throws SQLException; // Segments holding any seq in [fromSeq, toSeq], oldest first
+}
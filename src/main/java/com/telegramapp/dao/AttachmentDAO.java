@@ -0,0 +1,10 @@
+package com.telegramapp.dao;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Set;
+
+public interface AttachmentDAO {
+    Set<String> findReferencedPaths(Collection<String> mediaPaths) throws SQLException; // Subset still used by at least one message
+    int deleteUnreferenced() throws SQLException; // Drops bookkeeping rows whose count reached zero
+}
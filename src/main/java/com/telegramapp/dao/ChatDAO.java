@@ -1,40 +1,38 @@
 package com.telegramapp.dao;
 
 import com.telegramapp.db.DBConnection;
-import com.zaxxer.hikari.HikariDataSource;
-import com.telegramapp.db.DBConnection;
-import com.telegramapp.model.Chat;
-import com.telegramapp.model.User;
+
 import java.sql.*;
-import java.util.UUID;
 
+/**
+ * Access to the conversations table. Every message belongs to exactly one conversation, whose id is
+ * the group/channel id, or the two user ids of a direct chat in sorted order joined by ':'.
+ */
 public class ChatDAO {
 
-    public UUID findOrCreatePrivateChat(UUID a, UUID b){
-        UUID u1 = a.compareTo(b) < 0 ? a : b;
-        UUID u2 = a.compareTo(b) < 0 ? b : a;
-        String select = "SELECT id FROM private_chats WHERE user1=? AND user2=?";
-        String insert = "INSERT INTO private_chats (user1, user2) VALUES (?, ?) ON CONFLICT (user1, user2) DO NOTHING RETURNING id";
-        try (Connection c = DBConnection.getInstance().getConnection()){
-            try (PreparedStatement ps = c.prepareStatement(select)){
-                ps.setObject(1, u1); ps.setObject(2, u2);
-                try (ResultSet rs = ps.executeQuery()){
-                    if (rs.next()) return rs.getObject(1, UUID.class);
-                }
-            }
-            try (PreparedStatement ps = c.prepareStatement(insert)){
-                ps.setObject(1, u1); ps.setObject(2, u2);
-                try (ResultSet rs = ps.executeQuery()){
-                    if (rs.next()) return rs.getObject(1, UUID.class);
-                }
-            }
-            try (PreparedStatement ps = c.prepareStatement(select)){
-                ps.setObject(1, u1); ps.setObject(2, u2);
-                try (ResultSet rs = ps.executeQuery()){
-                    if (rs.next()) return rs.getObject(1, UUID.class);
-                }
-            }
-        } catch (SQLException e){ e.printStackTrace(); }
+    /**
+     * Conversation id of a chat as seen by currentUserId; mirrors assign_message_seq() in the schema.
+     */
+    public static String conversationIdFor(String receiverType, String receiverId, String currentUserId) {
+        if ("USER".equalsIgnoreCase(receiverType)) {
+            return directConversationId(currentUserId, receiverId);
+        }
+        return receiverId;
+    }
+
+    public static String directConversationId(String a, String b) {
+        return a.compareTo(b) < 0 ? a + ":" + b : b + ":" + a;
+    }
+
+    public String findOrCreatePrivateChat(String a, String b) {
+        String id = directConversationId(a, b);
+        String upsert = "INSERT INTO conversations (id, conversation_type) VALUES (?, 'USER') ON CONFLICT (id) DO NOTHING";
+        try (Connection c = DBConnection.getInstance().getConnection();
+             PreparedStatement ps = c.prepareStatement(upsert)) {
+            ps.setString(1, id);
+            ps.executeUpdate();
+            return id;
+        } catch (SQLException e) { e.printStackTrace(); }
         return null;
     }
 }
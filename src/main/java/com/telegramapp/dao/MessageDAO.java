@@ -1,21 +1,35 @@
 package com.telegramapp.dao;
 
+import com.telegramapp.model.ChatListItem;
 import com.telegramapp.model.Message;
+import com.telegramapp.model.MessageSearchHit;
 
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface MessageDAO {
     void save(Message message) throws SQLException;
+    void saveAll(List<Message> messages) throws SQLException; // One transaction; seq and conversationId are filled in on success
     void update(Message message) throws SQLException;
     void delete(String messageId, String senderId) throws SQLException;
     Optional<Message> findById(String messageId) throws SQLException; // For replies
     List<Message> findConversation(String receiverType, String receiverId, String currentUserId) throws SQLException;
-    List<Message> findNewMessagesAfter(String receiverType, String receiverId, String currentUserId, LocalDateTime after) throws SQLException;
+    List<Message> findConversationPage(String receiverType, String receiverId, String currentUserId, Long beforeSeq, int limit) throws SQLException; // Newest page below beforeSeq (null = latest), oldest first
+    List<Message> findConversationPage(String receiverType, String receiverId, String currentUserId, Long beforeSeq, LocalDateTime beforeTime, int limit) throws SQLException; // Same; beforeTime (timestamp of the cursor message) narrows the read to nearby partitions
+    List<Message> findAfterSeq(String receiverType, String receiverId, String currentUserId, long afterSeq) throws SQLException; // Everything after the sync cursor, in seq order
+    List<Message> findChangesSince(String receiverType, String receiverId, String currentUserId, long sinceVersion) throws SQLException; // Messages inserted, edited or deleted after the version, in version order
+    Map<String, List<Message>> findChangesSince(Map<String, Long> sinceVersionByConversation) throws SQLException; // The same for many conversations in one query, keyed by conversation id; unchanged ones are absent
     Optional<Message> findLastMessageForChat(String receiverType, String receiverId, String currentUserId) throws SQLException;
     int getUnreadMessageCount(String receiverType, String receiverId, String currentUserId) throws SQLException;
+    long findHeadSeq(String receiverType, String receiverId, String currentUserId) throws SQLException; // Seq of the conversation's newest message, 0 if it has none
+    long findPeerReadSeq(String receiverType, String receiverId, String currentUserId) throws SQLException; // Highest seq the other side has read; messages at or below it get the read tick
+    List<ChatListItem> findChatList(String currentUserId) throws SQLException; // Every chat of the user with its last message and unread count, in one query
+    List<MessageSearchHit> searchMessages(String userId, String query, String scopeConversationId, MessageSearchHit cursor, int limit, Consumer<Statement> onExecute) throws SQLException; // Newest first, only chats the user belongs to (scope null = all of them); cursor = last hit of the previous page; onExecute as in SearchDAO.searchAll
     void markMessagesAsRead(String receiverType, String receiverId, String currentUserId) throws SQLException;
 }
 
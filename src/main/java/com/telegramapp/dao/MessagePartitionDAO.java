@@ -0,0 +1,16 @@
+package com.telegramapp.dao;
+
+import com.telegramapp.model.Message;
+
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.function.Consumer;
+
+public interface MessagePartitionDAO {
+    int ensurePartitions(int monthsAhead) throws SQLException; // Creates missing monthly partitions up to monthsAhead; returns how many were added
+    List<String> findPartitionsBefore(YearMonth month) throws SQLException; // Attached partitions holding only months before the given one, oldest first
+    void detachPartition(String partitionName) throws SQLException; // Without blocking reads or inserts on messages; the table is kept for archival
+    void readPartition(String partitionName, Consumer<Message> action) throws SQLException; // Streams every row, ordered by conversation and seq
+    void dropDetachedPartition(String partitionName) throws SQLException; // Only once it is no longer attached to messages
+}
@@ -0,0 +1,15 @@
+package com.telegramapp.dao;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.function.Consumer;
+
+public interface SearchDAO {
+    /**
+     * Users, groups and channels matching the query in one round trip, best match first, at most limit rows.
+     * Items are {@link com.telegramapp.model.User}, {@link com.telegramapp.model.Group} or {@link com.telegramapp.model.Channel}.
+     * onExecute receives the running statement so the caller can cancel it; may be null.
+     */
+    List<Object> searchAll(String query, String currentUserId, int limit, Consumer<Statement> onExecute) throws SQLException;
+}
@@ -0,0 +1,78 @@
+package com.telegramapp.dao.impl;
+
+import com.telegramapp.dao.ArchiveDAO;
+import com.telegramapp.db.DBConnection;
+import com.telegramapp.model.ArchivedSegment;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArchiveDAOImpl implements ArchiveDAO {
+    private final DataSource ds;
+
+    public ArchiveDAOImpl() {
+        this.ds = DBConnection.getInstance().getDataSource();
+    }
+
+    @Override
+    public void saveSegments(List<ArchivedSegment> segments) throws SQLException {
+        if (segments.isEmpty()) return;
+        String sql = "INSERT INTO archived_segments (conversation_id, month, file_path, first_seq, last_seq, message_count) " +
+                "VALUES (?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (conversation_id, month) DO UPDATE SET file_path = EXCLUDED.file_path, " +
+                "first_seq = EXCLUDED.first_seq, last_seq = EXCLUDED.last_seq, message_count = EXCLUDED.message_count, archived_at = NOW()";
+        try (Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (ArchivedSegment s : segments) {
+                    ps.setString(1, s.getConversationId());
+                    ps.setDate(2, Date.valueOf(s.getMonth().atDay(1)));
+                    ps.setString(3, s.getFilePath());
+                    ps.setLong(4, s.getFirstSeq());
+                    ps.setLong(5, s.getLastSeq());
+                    ps.setInt(6, s.getMessageCount());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public List<ArchivedSegment> findSegments(String conversationId, long fromSeq, long toSeq) throws SQLException {
+        String sql = "SELECT conversation_id, month, file_path, first_seq, last_seq, message_count FROM archived_segments " +
+                "WHERE conversation_id = ? AND last_seq >= ? AND first_seq <= ? ORDER BY first_seq";
+        List<ArchivedSegment> segments = new ArrayList<>();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, conversationId);
+            ps.setLong(2, fromSeq);
+            ps.setLong(3, toSeq);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    segments.add(new ArchivedSegment(
+                            rs.getString("conversation_id"),
+                            YearMonth.from(rs.getDate("month").toLocalDate()),
+                            rs.getString("file_path"),
+                            rs.getLong("first_seq"),
+                            rs.getLong("last_seq"),
+                            rs.getInt("message_count")));
+                }
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,49 @@
+package com.telegramapp.dao.impl;
+
+import com.telegramapp.dao.AttachmentDAO;
+import com.telegramapp.db.DBConnection;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+public class AttachmentDAOImpl implements AttachmentDAO {
+    private final DataSource ds;
+
+    public AttachmentDAOImpl() {
+        this.ds = DBConnection.getInstance().getDataSource();
+    }
+
+    @Override
+    public Set<String> findReferencedPaths(Collection<String> mediaPaths) throws SQLException {
+        Set<String> referenced = new HashSet<>();
+        if (mediaPaths.isEmpty()) return referenced;
+        String sql = "SELECT media_path FROM attachment_refs WHERE media_path = ANY(?) AND ref_count > 0";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            Array paths = conn.createArrayOf("text", mediaPaths.toArray());
+            ps.setArray(1, paths);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    referenced.add(rs.getString(1));
+                }
+            }
+        }
+        return referenced;
+    }
+
+    @Override
+    public int deleteUnreferenced() throws SQLException {
+        String sql = "DELETE FROM attachment_refs WHERE ref_count <= 0";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            return ps.executeUpdate();
+        }
+    }
+}
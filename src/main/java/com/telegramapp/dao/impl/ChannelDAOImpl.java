@@ -18,28 +18,28 @@ public class ChannelDAOImpl implements ChannelDAO {
     }
 
     public List<Channel> searchPublicChannels(String query) throws SQLException {
-        List<Channel> channels = new ArrayList<>();
-        String sql = "SELECT * FROM channels WHERE is_public = TRUE AND LOWER(name) LIKE LOWER(?) ORDER BY name LIMIT 50";
-        String searchPattern = "%" + query + "%";
-        try (Connection conn = ds.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, searchPattern);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    channels.add(new Channel(rs.getString("id"), rs.getString("name"), rs.getString("owner_id")));
-                }
-            }
-        }
-        return channels;
+        return search(query, true);
     }
-
-    @Override
     public List<Channel> searchChannels(String query) throws SQLException {
+        return search(query, false);
+    }
+
+    private List<Channel> search(String query, boolean publicOnly) throws SQLException {
         List<Channel> channels = new ArrayList<>();
-        String sql = "SELECT * FROM channels WHERE LOWER(name) LIKE LOWER(?) LIMIT 50";
+        boolean trigram = TrigramSupport.useTrigram(ds, query);
+        String visibility = publicOnly ? "is_public = TRUE AND " : "";
+        String sql = trigram
+                ? "SELECT * FROM channels WHERE " + visibility + "(name ILIKE ? OR name % ?) ORDER BY similarity(name, ?) DESC, name LIMIT 50"
+                : "SELECT * FROM channels WHERE " + visibility + "LOWER(name) LIKE LOWER(?) ORDER BY name LIMIT 50";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, "%" + query + "%");
+            if (trigram) {
+                ps.setString(1, TrigramSupport.containsPattern(query));
+                ps.setString(2, query);
+                ps.setString(3, query);
+            } else {
+                ps.setString(1, TrigramSupport.plainPattern(ds, query));
+            }
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     channels.add(new Channel(rs.getString("id"), rs.getString("name"), rs.getString("owner_id")));
@@ -48,7 +48,6 @@ public class ChannelDAOImpl implements ChannelDAO {
         }
         return channels;
     }
-
     @Override
     public List<Channel> findSubscribedChannels(String userId) throws SQLException {
         List<Channel> channels = new ArrayList<>();
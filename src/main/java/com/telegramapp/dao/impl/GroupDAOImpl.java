@@ -18,27 +18,29 @@ public class GroupDAOImpl implements GroupDAO {
     }
 
     public List<Group> searchAllGroups(String query) throws SQLException {
-        List<Group> groups = new ArrayList<>();
-        String sql = "SELECT * FROM groups WHERE LOWER(name) LIKE LOWER(?) ORDER BY name LIMIT 50";
-        String searchPattern = "%" + query + "%";
-        try (Connection conn = ds.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, searchPattern);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    groups.add(new Group(rs.getString("id"), rs.getString("name"), rs.getString("creator_id")));
-                }
-            }
-        }
-        return groups;
+        return search(query);
     }
+
     @Override
     public List<Group> searchGroups(String query) throws SQLException {
+        return search(query);
+    }
+
+    private List<Group> search(String query) throws SQLException {
         List<Group> groups = new ArrayList<>();
-        String sql = "SELECT * FROM groups WHERE LOWER(name) LIKE LOWER(?) LIMIT 50";
+        boolean trigram = TrigramSupport.useTrigram(ds, query);
+        String sql = trigram
+                ? "SELECT * FROM groups WHERE name ILIKE ? OR name % ? ORDER BY similarity(name, ?) DESC, name LIMIT 50"
+                : "SELECT * FROM groups WHERE LOWER(name) LIKE LOWER(?) ORDER BY name LIMIT 50";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, "%" + query + "%");
+            if (trigram) {
+                ps.setString(1, TrigramSupport.containsPattern(query));
+                ps.setString(2, query);
+                ps.setString(3, query);
+            } else {
+                ps.setString(1, TrigramSupport.plainPattern(ds, query));
+            }
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     groups.add(new Group(rs.getString("id"), rs.getString("name"), rs.getString("creator_id")));
@@ -47,7 +49,6 @@ public class GroupDAOImpl implements GroupDAO {
         }
         return groups;
     }
-
     @Override
     public List<GroupMemberInfo> findMembersWithInfo(String groupId) throws SQLException {
         List<GroupMemberInfo> members = new ArrayList<>();
@@ -1,27 +1,62 @@
 package com.telegramapp.dao.impl;
 
+import com.telegramapp.dao.ArchiveDAO;
+import com.telegramapp.dao.ChatDAO;
 import com.telegramapp.dao.MessageDAO;
+import com.telegramapp.dao.MessagePartitionDAO;
 import com.telegramapp.db.DBConnection;
+import com.telegramapp.model.ArchivedSegment;
+import com.telegramapp.model.Channel;
+import com.telegramapp.model.ChatListItem;
+import com.telegramapp.model.Group;
 import com.telegramapp.model.Message;
+import com.telegramapp.model.MessageSearchHit;
+import com.telegramapp.model.User;
+import com.telegramapp.util.Config;
+import com.telegramapp.util.MessageSegment;
 
 import javax.sql.DataSource;
+import java.io.IOException;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 public class MessageDAOImpl implements MessageDAO {
+    // Explicit list so reads never ship search_vector, which is as large as the text itself.
+    static final String MESSAGE_COLUMNS = "id, sender_id, receiver_id, receiver_type, content, media_type, media_path, timestamp, read_status, reply_to_message_id, conversation_id, seq, version";
+    // The timestamp is the partition key. Client clocks are clamped to a week around the server's, so a
+    // badly set clock can neither hit a month without a partition nor land far from its neighbours.
+    private static final String INSERT_SQL = "INSERT INTO messages (id, sender_id, receiver_id, receiver_type, content, media_type, media_path, timestamp, read_status, reply_to_message_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, LEAST(GREATEST(?, LOCALTIMESTAMP - INTERVAL '7 days'), LOCALTIMESTAMP + INTERVAL '7 days'), ?, ?)";
+    private static final String NO_PARTITION_STATE = "23514"; // Insert into a month without a partition
+
+    // Recent reads are first tried within this window so they only touch the newest partitions.
+    private static final long RECENT_WINDOW_DAYS = Long.parseLong(Config.get("messages.recent.window.days", "31"));
+    // Allowance for clock differences between senders when bounding a page by its neighbour's time.
+    private static final long CLOCK_SKEW_DAYS = 7;
+
     private final DataSource ds;
+    private final MessagePartitionDAO partitionDAO;
+    private final ArchiveDAO archiveDAO;
 
     public MessageDAOImpl() {
         this.ds = DBConnection.getInstance().getDataSource();
+        this.partitionDAO = new MessagePartitionDAOImpl();
+        this.archiveDAO = new ArchiveDAOImpl();
     }
 
-    private Message readMessageFromResultSet(ResultSet rs) throws SQLException {
+    static Message readMessageFromResultSet(ResultSet rs) throws SQLException {
         Timestamp ts = rs.getTimestamp("timestamp");
         LocalDateTime dt = ts == null ? LocalDateTime.now() : ts.toLocalDateTime();
-        return new Message(
+        Message m = new Message(
                 rs.getString("id"),
                 rs.getString("sender_id"),
                 rs.getString("receiver_id"),
@@ -33,6 +68,10 @@ public class MessageDAOImpl implements MessageDAO {
                 rs.getString("read_status"),
                 rs.getString("reply_to_message_id")
         );
+        m.setSeq(rs.getLong("seq"));
+        m.setConversationId(rs.getString("conversation_id"));
+        m.setVersion(rs.getLong("version"));
+        return m;
     }
 
     private List<Message> readMessagesFromResultSet(ResultSet rs) throws SQLException {
@@ -45,7 +84,7 @@ public class MessageDAOImpl implements MessageDAO {
 
     @Override
     public Optional<Message> findById(String messageId) throws SQLException {
-        String sql = "SELECT * FROM messages WHERE id = ?";
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE id = ?";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, messageId);
@@ -60,24 +99,15 @@ public class MessageDAOImpl implements MessageDAO {
 
     @Override
     public Optional<Message> findLastMessageForChat(String receiverType, String receiverId, String currentUserId) throws SQLException {
-        String sql;
-        if ("USER".equalsIgnoreCase(receiverType)) {
-            sql = "SELECT * FROM messages WHERE receiver_type = 'USER' AND ((sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?)) ORDER BY timestamp DESC LIMIT 1";
-        } else {
-            sql = "SELECT * FROM messages WHERE receiver_type = ? AND receiver_id = ? ORDER BY timestamp DESC LIMIT 1";
-        }
-
+        // conversations knows both the seq and the time of the newest message; the subquery's result
+        // prunes at run time, so only that message's partition is probed.
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE conversation_id = ? " +
+                "AND (seq, timestamp) = (SELECT last_seq, last_message_at FROM conversations WHERE id = ?)";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            if ("USER".equalsIgnoreCase(receiverType)) {
-                ps.setString(1, currentUserId);
-                ps.setString(2, receiverId);
-                ps.setString(3, receiverId);
-                ps.setString(4, currentUserId);
-            } else {
-                ps.setString(1, receiverType);
-                ps.setString(2, receiverId);
-            }
+            String conversationId = ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId);
+            ps.setString(1, conversationId);
+            ps.setString(2, conversationId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
                     return Optional.of(readMessageFromResultSet(rs));
@@ -89,26 +119,31 @@ public class MessageDAOImpl implements MessageDAO {
 
     @Override
     public int getUnreadMessageCount(String receiverType, String receiverId, String currentUserId) throws SQLException {
-        String sql;
-        if ("USER".equalsIgnoreCase(receiverType)) {
-            sql = "SELECT COUNT(*) FROM messages WHERE receiver_type = 'USER' AND sender_id = ? AND receiver_id = ? AND read_status = 'UNREAD'";
-        } else {
-            sql = "SELECT COUNT(*) FROM messages WHERE receiver_type = ? AND receiver_id = ? AND sender_id <> ? AND read_status = 'UNREAD'";
+        String sql = "SELECT GREATEST(c.last_seq - COALESCE(rs.last_read_seq, 0), 0) FROM conversations c " +
+                "LEFT JOIN chat_read_state rs ON rs.conversation_id = c.id AND rs.user_id = ? " +
+                "WHERE c.id = ?";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, currentUserId);
+            ps.setString(2, ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId));
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+            }
         }
+        return 0;
+    }
 
+    @Override
+    public long findHeadSeq(String receiverType, String receiverId, String currentUserId) throws SQLException {
+        String sql = "SELECT last_seq FROM conversations WHERE id = ?";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            if ("USER".equalsIgnoreCase(receiverType)) {
-                ps.setString(1, receiverId);
-                ps.setString(2, currentUserId);
-            } else {
-                ps.setString(1, receiverType);
-                ps.setString(2, receiverId);
-                ps.setString(3, currentUserId);
-            }
+            ps.setString(1, ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId));
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return rs.getInt(1);
+                    return rs.getLong(1);
                 }
             }
         }
@@ -116,80 +151,429 @@ public class MessageDAOImpl implements MessageDAO {
     }
 
     @Override
-    public void markMessagesAsRead(String receiverType, String receiverId, String currentUserId) throws SQLException {
-        String sql;
-        if ("USER".equalsIgnoreCase(receiverType)) {
-            sql = "UPDATE messages SET read_status = 'READ' WHERE receiver_type = 'USER' AND sender_id = ? AND receiver_id = ? AND read_status = 'UNREAD'";
-        } else {
-            sql = "UPDATE messages SET read_status = 'READ' WHERE receiver_type = ? AND receiver_id = ? AND sender_id <> ? AND read_status = 'UNREAD'";
+    public long findPeerReadSeq(String receiverType, String receiverId, String currentUserId) throws SQLException {
+        String sql = "SELECT MAX(last_read_seq) FROM chat_read_state WHERE conversation_id = ? AND user_id <> ?";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId));
+            ps.setString(2, currentUserId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
         }
+        return 0;
+    }
 
+    @Override
+    public List<ChatListItem> findChatList(String currentUserId) throws SQLException {
+        // One round trip for the whole sidebar: each branch resolves the user's chats of one type,
+        // fetches the newest message by the (seq, time) the conversation head records, which prunes the
+        // LATERAL probe to a single partition, and derives the badge from the head and the user's read watermark.
+        String sql =
+                "SELECT 'USER' AS chat_type, u.id AS chat_id, u.display_name AS name, u.username, u.profile_pic_path, u.status, NULL AS owner_id, " +
+                "       lm.content AS last_content, lm.timestamp AS last_timestamp, cv.last_seq AS last_seq, " +
+                "       GREATEST(cv.last_seq - COALESCE(rs.last_read_seq, 0), 0) AS unread_count " +
+                "FROM users me " +
+                "JOIN users u ON u.id IN (SELECT trim(c) FROM unnest(string_to_array(me.contacts, ',')) AS c) " +
+                "JOIN conversations cv ON cv.id = LEAST(me.id COLLATE \"C\", u.id) || ':' || GREATEST(me.id COLLATE \"C\", u.id) " +
+                "LEFT JOIN LATERAL (SELECT m.content, m.timestamp FROM messages m WHERE m.conversation_id = cv.id " +
+                "                   AND m.seq = cv.last_seq AND m.timestamp = cv.last_message_at) lm ON TRUE " +
+                "LEFT JOIN chat_read_state rs ON rs.conversation_id = cv.id AND rs.user_id = me.id " +
+                "WHERE me.id = ? AND cv.last_seq > 0 " +
+                "UNION ALL " +
+                "SELECT 'GROUP', g.id, g.name, NULL, NULL, NULL, g.creator_id, lm.content, lm.timestamp, COALESCE(cv.last_seq, 0), " +
+                "       GREATEST(COALESCE(cv.last_seq, 0) - COALESCE(rs.last_read_seq, 0), 0) " +
+                "FROM group_members gm " +
+                "JOIN groups g ON g.id = gm.group_id " +
+                "LEFT JOIN conversations cv ON cv.id = g.id " +
+                "LEFT JOIN LATERAL (SELECT m.content, m.timestamp FROM messages m WHERE m.conversation_id = cv.id " +
+                "                   AND m.seq = cv.last_seq AND m.timestamp = cv.last_message_at) lm ON TRUE " +
+                "LEFT JOIN chat_read_state rs ON rs.conversation_id = g.id AND rs.user_id = gm.user_id " +
+                "WHERE gm.user_id = ? " +
+                "UNION ALL " +
+                "SELECT 'CHANNEL', c.id, c.name, NULL, NULL, NULL, c.owner_id, lm.content, lm.timestamp, COALESCE(cv.last_seq, 0), " +
+                "       GREATEST(COALESCE(cv.last_seq, 0) - COALESCE(rs.last_read_seq, 0), 0) " +
+                "FROM channel_subscribers cs " +
+                "JOIN channels c ON c.id = cs.channel_id " +
+                "LEFT JOIN conversations cv ON cv.id = c.id " +
+                "LEFT JOIN LATERAL (SELECT m.content, m.timestamp FROM messages m WHERE m.conversation_id = cv.id " +
+                "                   AND m.seq = cv.last_seq AND m.timestamp = cv.last_message_at) lm ON TRUE " +
+                "LEFT JOIN chat_read_state rs ON rs.conversation_id = c.id AND rs.user_id = cs.user_id " +
+                "WHERE cs.user_id = ?";
+
+        List<ChatListItem> items = new ArrayList<>();
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            if ("USER".equalsIgnoreCase(receiverType)) {
-                ps.setString(1, receiverId);
-                ps.setString(2, currentUserId);
-            } else {
-                ps.setString(1, receiverType);
-                ps.setString(2, receiverId);
-                ps.setString(3, currentUserId);
+            ps.setString(1, currentUserId);
+            ps.setString(2, currentUserId);
+            ps.setString(3, currentUserId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    items.add(readChatListItemFromResultSet(rs));
+                }
             }
-            ps.executeUpdate();
         }
+        return items;
+    }
+
+    private ChatListItem readChatListItemFromResultSet(ResultSet rs) throws SQLException {
+        String chatId = rs.getString("chat_id");
+        String name = rs.getString("name");
+        Object chatObject;
+        switch (rs.getString("chat_type")) {
+            case "USER" -> {
+                User user = new User(chatId, rs.getString("username"), null, name);
+                user.setProfilePicPath(rs.getString("profile_pic_path"));
+                user.setStatus(rs.getString("status"));
+                chatObject = user;
+            }
+            case "GROUP" -> chatObject = new Group(chatId, name, rs.getString("owner_id"));
+            default -> chatObject = new Channel(chatId, name, rs.getString("owner_id"));
+        }
+        Timestamp ts = rs.getTimestamp("last_timestamp");
+        String lastMessage = ts == null ? "No messages yet" : rs.getString("last_content");
+        LocalDateTime lastTimestamp = ts == null ? LocalDateTime.MIN : ts.toLocalDateTime();
+        ChatListItem item = new ChatListItem(chatObject, lastMessage, rs.getInt("unread_count"), lastTimestamp);
+        item.setLastMessageSeq(rs.getLong("last_seq"));
+        return item;
     }
 
     @Override
-    public void save(Message m) throws SQLException {
-        String sql = "INSERT INTO messages (id, sender_id, receiver_id, receiver_type, content, media_type, media_path, timestamp, read_status, reply_to_message_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    public List<MessageSearchHit> searchMessages(String userId, String query, String scopeConversationId, MessageSearchHit cursor, int limit, Consumer<Statement> onExecute) throws SQLException {
+        // The inner query pages through matches using idx_messages_search, which intersects the term with the
+        // user's conversations (evaluated once into an array) in one bitmap. ts_headline re-parses the text,
+        // so it only runs for the rows of the page.
+        StringBuilder sql = new StringBuilder(
+                "WITH mine AS (" +
+                "  SELECT id FROM conversations WHERE conversation_type = 'USER' AND split_part(id, ':', 1) = ? " +
+                "  UNION ALL SELECT id FROM conversations WHERE conversation_type = 'USER' AND split_part(id, ':', 2) = ? " +
+                "  UNION ALL SELECT group_id FROM group_members WHERE user_id = ? " +
+                "  UNION ALL SELECT channel_id FROM channel_subscribers WHERE user_id = ?" +
+                "), page AS (" +
+                "  SELECT " + MESSAGE_COLUMNS + " FROM messages m " +
+                "  WHERE m.search_vector @@ websearch_to_tsquery('simple', ?) " +
+                "    AND m.conversation_id = ANY (ARRAY(SELECT id FROM mine))");
+        if (scopeConversationId != null) sql.append(" AND m.conversation_id = ?");
+        if (cursor != null) sql.append(" AND (m.timestamp, m.id) < (?, ?)");
+        sql.append("  ORDER BY m.timestamp DESC, m.id DESC LIMIT ?" +
+                ") " +
+                "SELECT page.*, ts_headline('simple', page.content, websearch_to_tsquery('simple', ?), ?) AS snippet " +
+                "FROM page ORDER BY page.timestamp DESC, page.id DESC");
+
+        String headlineOptions = "StartSel=" + MessageSearchHit.HIGHLIGHT_START + ", StopSel=" + MessageSearchHit.HIGHLIGHT_END
+                + ", MaxWords=16, MinWords=6, MaxFragments=1";
+        List<MessageSearchHit> hits = new ArrayList<>();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int i = 1;
+            ps.setString(i++, userId);
+            ps.setString(i++, userId);
+            ps.setString(i++, userId);
+            ps.setString(i++, userId);
+            ps.setString(i++, query);
+            if (scopeConversationId != null) ps.setString(i++, scopeConversationId);
+            if (cursor != null) {
+                ps.setTimestamp(i++, Timestamp.valueOf(cursor.getMessage().getTimestamp()));
+                ps.setString(i++, cursor.getMessage().getId());
+            }
+            ps.setInt(i++, limit);
+            ps.setString(i++, query);
+            ps.setString(i, headlineOptions);
+            if (onExecute != null) onExecute.accept(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    hits.add(new MessageSearchHit(readMessageFromResultSet(rs), rs.getString("snippet")));
+                }
+            } finally {
+                // As in SearchDAO.searchAll: no cancel may reach the connection once it is back in the pool
+                if (onExecute != null) onExecute.accept(null);
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public void markMessagesAsRead(String receiverType, String receiverId, String currentUserId) throws SQLException {
+        // Moves the user's watermark to the conversation head. Message rows are left alone, and the
+        // WHERE on the conflict branch skips the write entirely when there is nothing new to read.
+        String sql = "INSERT INTO chat_read_state (user_id, conversation_id, last_read_seq, last_read_at) " +
+                "SELECT ?, c.id, c.last_seq, NOW() FROM conversations c WHERE c.id = ? " +
+                "ON CONFLICT (user_id, conversation_id) DO UPDATE " +
+                "SET last_read_seq = EXCLUDED.last_read_seq, last_read_at = EXCLUDED.last_read_at " +
+                "WHERE chat_read_state.last_read_seq < EXCLUDED.last_read_seq";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, m.getId());
-            ps.setString(2, m.getSenderId());
-            ps.setString(3, m.getReceiverId());
-            ps.setObject(4, m.getReceiverType(), java.sql.Types.OTHER);
-            ps.setString(5, m.getContent());
-            ps.setString(6, m.getMediaType());
-            ps.setString(7, m.getMediaPath());
-            ps.setTimestamp(8, Timestamp.valueOf(m.getTimestamp() == null ? LocalDateTime.now() : m.getTimestamp()));
-            ps.setObject(9, m.getReadStatus(), java.sql.Types.OTHER);
-            ps.setString(10, m.getReplyToMessageId());
+            ps.setString(1, currentUserId);
+            ps.setString(2, ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId));
             ps.executeUpdate();
         }
     }
 
     @Override
-    public void update(Message message) throws SQLException {
-        String sql = "UPDATE messages SET content = ?, read_status = 'EDITED', timestamp = ? WHERE id = ? AND sender_id = ?";
+    public void save(Message m) throws SQLException {
+        try {
+            insert(m);
+        } catch (SQLException e) {
+            if (!NO_PARTITION_STATE.equals(e.getSQLState())) throw e;
+            partitionDAO.ensurePartitions(3);
+            insert(m);
+        }
+    }
+
+    private void insert(Message m) throws SQLException {
+        String sql = INSERT_SQL + " RETURNING seq, conversation_id, timestamp, version";
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, message.getContent());
-            ps.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
-            ps.setString(3, message.getId());
-            ps.setString(4, message.getSenderId()); // Ensure users can only edit their own messages
-            ps.executeUpdate();
+            bindInsert(ps, m);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    m.setSeq(rs.getLong(1));
+                    m.setConversationId(rs.getString(2));
+                    m.setTimestamp(rs.getTimestamp(3).toLocalDateTime());
+                    m.setVersion(rs.getLong(4));
+                }
+            }
         }
     }
 
+    @Override
+    public void saveAll(List<Message> messages) throws SQLException {
+        if (messages.isEmpty()) return;
+        // Rows of one conversation keep their relative order (List.sort is stable); sorting by conversation
+        // makes every batch lock the conversations counters in the same order, so concurrent batches cannot deadlock.
+        List<Message> ordered = new ArrayList<>(messages);
+        ordered.sort(Comparator.comparing(m -> ChatDAO.conversationIdFor(m.getReceiverType(), m.getReceiverId(), m.getSenderId())));
+        try {
+            insertBatch(ordered);
+        } catch (SQLException e) {
+            if (!NO_PARTITION_STATE.equals(e.getSQLState())) throw e;
+            partitionDAO.ensurePartitions(3);
+            insertBatch(ordered);
+        }
+    }
+
+    private void insertBatch(List<Message> ordered) throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_SQL, new String[]{"seq", "conversation_id", "timestamp", "version"})) {
+                for (Message m : ordered) {
+                    bindInsert(ps, m);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (Message m : ordered) {
+                        if (!keys.next()) break;
+                        m.setSeq(keys.getLong(1));
+                        m.setConversationId(keys.getString(2));
+                        m.setTimestamp(keys.getTimestamp(3).toLocalDateTime());
+                        m.setVersion(keys.getLong(4));
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void bindInsert(PreparedStatement ps, Message m) throws SQLException {
+        ps.setString(1, m.getId());
+        ps.setString(2, m.getSenderId());
+        ps.setString(3, m.getReceiverId());
+        ps.setObject(4, m.getReceiverType(), java.sql.Types.OTHER);
+        ps.setString(5, m.getContent());
+        ps.setString(6, m.getMediaType());
+        ps.setString(7, m.getMediaPath());
+        ps.setTimestamp(8, Timestamp.valueOf(m.getTimestamp() == null ? LocalDateTime.now() : m.getTimestamp()));
+        ps.setObject(9, m.getReadStatus(), java.sql.Types.OTHER);
+        ps.setString(10, m.getReplyToMessageId());
+    }
+
+    @Override
+    public void update(Message message) throws SQLException {
+        // The timestamp stays as sent: it is the partition key, and changing it would move the row.
+        // Matching on it as well lets the update go straight to the message's partition.
+        String sql = "UPDATE messages SET content = ?, read_status = 'EDITED', edited_at = ? WHERE id = ? AND sender_id = ?";
+        try (Connection conn = ds.getConnection()) {
+            int updated = 0;
+            if (message.getTimestamp() != null) {
+                try (PreparedStatement ps = conn.prepareStatement(sql + " AND timestamp = ?")) {
+                    bindUpdate(ps, message);
+                    ps.setTimestamp(5, Timestamp.valueOf(message.getTimestamp()));
+                    updated = ps.executeUpdate();
+                }
+            }
+            if (updated == 0) {
+                // The object's timestamp did not come from the database; find the row by id in every partition.
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    bindUpdate(ps, message);
+                    ps.executeUpdate();
+                }
+            }
+        }
+    }
+
+    private void bindUpdate(PreparedStatement ps, Message message) throws SQLException {
+        ps.setString(1, message.getContent());
+        ps.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
+        ps.setString(3, message.getId());
+        ps.setString(4, message.getSenderId()); // Ensure users can only edit their own messages
+    }
+
     @Override
     public List<Message> findConversation(String receiverType, String receiverId, String currentUserId) throws SQLException {
-        String sql;
-        if ("USER".equalsIgnoreCase(receiverType)) {
-            sql = "SELECT * FROM messages WHERE receiver_type = 'USER' AND ((sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?)) ORDER BY timestamp ASC, id ASC";
-        } else {
-            sql = "SELECT * FROM messages WHERE receiver_type = ? AND receiver_id = ? ORDER BY timestamp ASC, id ASC";
+        return readPruned(ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId), true, 0, 0, null, null);
+    }
+
+    @Override
+    public List<Message> findConversationPage(String receiverType, String receiverId, String currentUserId, Long beforeSeq, int limit) throws SQLException {
+        return findConversationPage(receiverType, receiverId, currentUserId, beforeSeq, null, limit);
+    }
+
+    @Override
+    public List<Message> findConversationPage(String receiverType, String receiverId, String currentUserId, Long beforeSeq, LocalDateTime beforeTime, int limit) throws SQLException {
+        String conversationId = ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId);
+        if (beforeSeq == null) {
+            return readPruned(conversationId, false, Long.MAX_VALUE, limit, LocalDateTime.now().minusDays(RECENT_WINDOW_DAYS), null);
+        }
+        if (beforeTime == null) {
+            return readPruned(conversationId, false, beforeSeq, limit, null, null);
         }
+        // Older pages sit just before the cursor in time, so look there first.
+        return readPruned(conversationId, false, beforeSeq, limit,
+                beforeTime.minusDays(RECENT_WINDOW_DAYS), beforeTime.plusDays(CLOCK_SKEW_DAYS));
+    }
+
+    @Override
+    public List<Message> findAfterSeq(String receiverType, String receiverId, String currentUserId, long afterSeq) throws SQLException {
+        String conversationId = ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId);
+        return readPruned(conversationId, true, afterSeq, 0, LocalDateTime.now().minusDays(RECENT_WINDOW_DAYS), null);
+    }
+
+    /**
+     * A seq range that only touches the partitions of [from, to) if that window holds all of it, and
+     * every partition otherwise. Timestamps come from the senders' clocks, so a window is a guess; but
+     * seq is gap-free within a conversation, so whether the guess held can be checked exactly from the
+     * conversation head returned alongside the rows. Seqs that no partition holds any more have been
+     * archived and are read from their segment files.
+     */
+    private List<Message> readPruned(String conversationId, boolean after, long seqBound, int limit, LocalDateTime from, LocalDateTime to) throws SQLException {
+        SeqRange range = readRange(conversationId, after, seqBound, limit, from, to);
+        if (!range.isComplete(after, seqBound, limit) && (from != null || to != null)) {
+            range = readRange(conversationId, after, seqBound, limit, null, null);
+        }
+        if (range.isComplete(after, seqBound, limit)) return range.messages();
+        return withArchived(conversationId, after, seqBound, limit, range);
+    }
+
+    /**
+     * Fills the holes of a range from the archive. Segments that cannot be read (not reachable from
+     * this machine, or damaged) are skipped, leaving what the database still has.
+     */
+    private List<Message> withArchived(String conversationId, boolean after, long seqBound, int limit, SeqRange hot) throws SQLException {
+        long top = hot.top(after, seqBound);
+        long bottom = hot.bottom(after, seqBound, limit);
+        TreeMap<Long, Message> bySeq = new TreeMap<>();
+        for (ArchivedSegment segment : archiveDAO.findSegments(conversationId, bottom, top)) {
+            try {
+                for (Message m : MessageSegment.open(MessageSegment.archivePath(segment.getFilePath())).read(bottom, top)) {
+                    bySeq.put(m.getSeq(), m);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read archived messages from " + segment.getFilePath() + ": " + e.getMessage());
+            }
+        }
+        if (bySeq.isEmpty()) return hot.messages();
+        // While a month is being archived it is in both places; the database copy wins.
+        for (Message m : hot.messages()) {
+            if (m.getSeq() >= bottom) bySeq.put(m.getSeq(), m);
+        }
+        return new ArrayList<>(bySeq.values());
+    }
+
+    /**
+     * Messages with seq above (after) or below seqBound, the newest limit of them (0 = all), oldest first,
+     * plus the conversation's last_seq read in the same snapshot.
+     */
+    private SeqRange readRange(String conversationId, boolean after, long seqBound, int limit, LocalDateTime from, LocalDateTime to) throws SQLException {
+        StringBuilder range = new StringBuilder("SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE conversation_id = ? AND seq " + (after ? ">" : "<") + " ?");
+        if (from != null) range.append(" AND timestamp >= ?");
+        if (to != null) range.append(" AND timestamp < ?");
+        range.append(" ORDER BY seq DESC");
+        if (limit > 0) range.append(" LIMIT ?");
+        // The LEFT JOIN keeps the head row even when the range is empty.
+        String sql = "SELECT h.head_seq, m.* FROM (SELECT last_seq AS head_seq FROM conversations WHERE id = ?) h " +
+                "LEFT JOIN LATERAL (" + range + ") m ON TRUE";
 
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            if ("USER".equalsIgnoreCase(receiverType)) {
-                ps.setString(1, currentUserId);
-                ps.setString(2, receiverId);
-                ps.setString(3, receiverId);
-                ps.setString(4, currentUserId);
-            } else {
-                ps.setString(1, receiverType);
-                ps.setString(2, receiverId);
+            int i = 1;
+            ps.setString(i++, conversationId);
+            ps.setString(i++, conversationId);
+            ps.setLong(i++, seqBound);
+            if (from != null) ps.setTimestamp(i++, Timestamp.valueOf(from));
+            if (to != null) ps.setTimestamp(i++, Timestamp.valueOf(to));
+            if (limit > 0) ps.setInt(i, limit);
+            long head = 0;
+            List<Message> messages = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    head = rs.getLong("head_seq");
+                    if (rs.getString("id") != null) messages.add(readMessageFromResultSet(rs));
+                }
             }
+            // Fetched newest-first so LIMIT keeps the latest rows; callers want them oldest-first.
+            Collections.reverse(messages);
+            return new SeqRange(head, messages);
+        }
+    }
+
+    private record SeqRange(long headSeq, List<Message> messages) {
+        /**
+         * Whether these are exactly the rows the unbounded read would return: all seqs between the
+         * expected bottom and top, without holes.
+         */
+        boolean isComplete(boolean after, long seqBound, int limit) {
+            long top = top(after, seqBound);
+            long bottom = bottom(after, seqBound, limit);
+            long expected = Math.max(0, top - bottom + 1);
+            if (messages.size() != expected) return false;
+            return messages.isEmpty()
+                    || (messages.get(0).getSeq() == bottom && messages.get(messages.size() - 1).getSeq() == top);
+        }
+
+        /** Newest seq the read should return. */
+        long top(boolean after, long seqBound) {
+            return after ? headSeq : Math.min(seqBound - 1, headSeq);
+        }
+
+        /** Oldest seq the read should return. */
+        long bottom(boolean after, long seqBound, int limit) {
+            long bottom = after ? seqBound + 1 : 1;
+            return limit > 0 ? Math.max(bottom, top(after, seqBound) - limit + 1) : bottom;
+        }
+    }
+
+    @Override
+    public List<Message> findChangesSince(String receiverType, String receiverId, String currentUserId, long sinceVersion) throws SQLException {
+        // The conversation head is checked first: when nothing changed (the usual case for a chat that
+        // only got a typing ping or a peer's read), no partition is touched at all.
+        String sql = "SELECT m.* FROM (SELECT last_version AS head_version FROM conversations WHERE id = ?) h " +
+                "JOIN LATERAL (SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE conversation_id = ? AND version > ? " +
+                "              AND h.head_version > ? ORDER BY version) m ON TRUE";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            String conversationId = ChatDAO.conversationIdFor(receiverType, receiverId, currentUserId);
+            ps.setString(1, conversationId);
+            ps.setString(2, conversationId);
+            ps.setLong(3, sinceVersion);
+            ps.setLong(4, sinceVersion);
             try (ResultSet rs = ps.executeQuery()) {
                 return readMessagesFromResultSet(rs);
             }
@@ -197,31 +581,33 @@ public class MessageDAOImpl implements MessageDAO {
     }
 
     @Override
-    public List<Message> findNewMessagesAfter(String receiverType, String receiverId, String currentUserId, LocalDateTime after) throws SQLException {
-        String sql;
-        if ("USER".equalsIgnoreCase(receiverType)) {
-            sql = "SELECT * FROM messages WHERE receiver_type = 'USER' AND ((sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?)) AND timestamp > ? ORDER BY timestamp ASC, id ASC";
-        } else {
-            sql = "SELECT * FROM messages WHERE receiver_type = ? AND receiver_id = ? AND timestamp > ? ORDER BY timestamp ASC, id ASC";
+    public Map<String, List<Message>> findChangesSince(Map<String, Long> sinceVersionByConversation) throws SQLException {
+        Map<String, List<Message>> changes = new HashMap<>();
+        if (sinceVersionByConversation.isEmpty()) return changes;
+        // Same head check as above, per conversation: only those that changed reach the messages table.
+        String sql = "SELECT m.* FROM unnest(?::text[], ?::bigint[]) AS hw(conversation_id, since_version) " +
+                "JOIN conversations c ON c.id = hw.conversation_id AND c.last_version > hw.since_version " +
+                "JOIN LATERAL (SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE conversation_id = hw.conversation_id " +
+                "              AND version > hw.since_version ORDER BY version) m ON TRUE " +
+                "ORDER BY m.conversation_id, m.version";
+        String[] ids = new String[sinceVersionByConversation.size()];
+        Long[] versions = new Long[ids.length];
+        int i = 0;
+        for (Map.Entry<String, Long> e : sinceVersionByConversation.entrySet()) {
+            ids[i] = e.getKey();
+            versions[i++] = e.getValue();
         }
-
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            int paramIndex = 1;
-            if ("USER".equalsIgnoreCase(receiverType)) {
-                ps.setString(paramIndex++, currentUserId);
-                ps.setString(paramIndex++, receiverId);
-                ps.setString(paramIndex++, receiverId);
-                ps.setString(paramIndex++, currentUserId);
-            } else {
-                ps.setString(paramIndex++, receiverType);
-                ps.setString(paramIndex++, receiverId);
-            }
-            ps.setTimestamp(paramIndex, Timestamp.valueOf(after));
+            ps.setArray(1, conn.createArrayOf("text", ids));
+            ps.setArray(2, conn.createArrayOf("bigint", versions));
             try (ResultSet rs = ps.executeQuery()) {
-                return readMessagesFromResultSet(rs);
+                for (Message m : readMessagesFromResultSet(rs)) {
+                    changes.computeIfAbsent(m.getConversationId(), k -> new ArrayList<>()).add(m);
+                }
             }
         }
+        return changes;
     }
 
     @Override
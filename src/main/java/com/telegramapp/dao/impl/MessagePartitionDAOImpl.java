@@ -0,0 +1,132 @@
+package com.telegramapp.dao.impl;
+
+import com.telegramapp.dao.MessagePartitionDAO;
+import com.telegramapp.db.DBConnection;
+import com.telegramapp.model.Message;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+public class MessagePartitionDAOImpl implements MessagePartitionDAO {
+    private static final DateTimeFormatter PARTITION_MONTH = DateTimeFormatter.ofPattern("yyyy_MM");
+    private static final Pattern PARTITION_NAME = Pattern.compile("messages_\\d{4}_\\d{2}");
+    private static final int FETCH_SIZE = 1000;
+
+    private final DataSource ds;
+
+    public MessagePartitionDAOImpl() {
+        this.ds = DBConnection.getInstance().getDataSource();
+    }
+
+    @Override
+    public int ensurePartitions(int monthsAhead) throws SQLException {
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT ensure_message_partitions(?)")) {
+            ps.setInt(1, monthsAhead);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    @Override
+    public List<String> findPartitionsBefore(YearMonth month) throws SQLException {
+        // Names are messages_YYYY_MM, so they sort chronologically and compare against the cutoff as text.
+        String sql = "SELECT c.relname FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid " +
+                "WHERE i.inhparent = 'messages'::regclass AND c.relname < ? " +
+                "ORDER BY c.relname";
+        List<String> names = new ArrayList<>();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, "messages_" + month.format(PARTITION_MONTH));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    if (PARTITION_NAME.matcher(name).matches()) names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void detachPartition(String partitionName) throws SQLException {
+        requirePartitionName(partitionName);
+        // CONCURRENTLY only takes a SHARE UPDATE EXCLUSIVE lock, but cannot run inside a transaction
+        // block, so this relies on the pool's autocommit. A detach that was interrupted half-way
+        // leaves the partition "pending" and has to be finished with FINALIZE instead.
+        try (Connection conn = ds.getConnection()) {
+            boolean pending;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT i.inhdetachpending FROM pg_inherits i WHERE i.inhparent = 'messages'::regclass AND i.inhrelid = to_regclass(?)")) {
+                ps.setString(1, partitionName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return; // Already detached
+                    pending = rs.getBoolean(1);
+                }
+            }
+            try (Statement st = conn.createStatement()) {
+                st.execute("ALTER TABLE messages DETACH PARTITION " + partitionName + (pending ? " FINALIZE" : " CONCURRENTLY"));
+            }
+        }
+    }
+
+    @Override
+    public void readPartition(String partitionName, Consumer<Message> action) throws SQLException {
+        requirePartitionName(partitionName);
+        String sql = "SELECT " + MessageDAOImpl.MESSAGE_COLUMNS + " FROM " + partitionName + " ORDER BY conversation_id, seq";
+        try (Connection conn = ds.getConnection()) {
+            // The driver only fetches in batches (instead of the whole month at once) inside a transaction.
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        action.accept(MessageDAOImpl.readMessageFromResultSet(rs));
+                    }
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void dropDetachedPartition(String partitionName) throws SQLException {
+        requirePartitionName(partitionName);
+        try (Connection conn = ds.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT 1 FROM pg_inherits WHERE inhparent = 'messages'::regclass AND inhrelid = to_regclass(?)")) {
+                ps.setString(1, partitionName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) throw new SQLException("Partition is still attached: " + partitionName);
+                }
+            }
+            try (Statement st = conn.createStatement()) {
+                st.execute("DROP TABLE IF EXISTS " + partitionName);
+            }
+        }
+    }
+
+    private static void requirePartitionName(String partitionName) throws SQLException {
+        // The name goes into SQL text, so only accept our own naming scheme.
+        if (!PARTITION_NAME.matcher(partitionName).matches()) {
+            throw new SQLException("Not a message partition: " + partitionName);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.telegramapp.dao.impl;
+
+import com.telegramapp.dao.SearchDAO;
+import com.telegramapp.db.DBConnection;
+import com.telegramapp.model.Channel;
+import com.telegramapp.model.Group;
+import com.telegramapp.model.User;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class SearchDAOImpl implements SearchDAO {
+    // Each branch is capped on its own so the planner can stop every index scan early.
+    private static final String TRIGRAM_SQL =
+            "(SELECT 0 AS kind, id, username AS name, display_name AS label, CAST(NULL AS VARCHAR(36)) AS owner_id, "
+            + "GREATEST(similarity(username, ?), similarity(display_name, ?)) AS score FROM users "
+            + "WHERE id <> ? AND (username ILIKE ? OR display_name ILIKE ? OR username % ? OR display_name % ?) "
+            + "ORDER BY score DESC LIMIT ?) "
+            + "UNION ALL "
+            + "(SELECT 1, id, name, NULL, creator_id, similarity(name, ?) AS score FROM groups "
+            + "WHERE name ILIKE ? OR name % ? ORDER BY score DESC LIMIT ?) "
+            + "UNION ALL "
+            + "(SELECT 2, id, name, NULL, owner_id, similarity(name, ?) AS score FROM channels "
+            + "WHERE name ILIKE ? OR name % ? ORDER BY score DESC LIMIT ?) "
+            + "ORDER BY score DESC, kind, name LIMIT ?";
+
+    private static final String PLAIN_SQL =
+            "(SELECT 0 AS kind, id, username AS name, display_name AS label, CAST(NULL AS VARCHAR(36)) AS owner_id, 0 AS score FROM users "
+            + "WHERE id <> ? AND (LOWER(username) LIKE LOWER(?) OR LOWER(display_name) LIKE LOWER(?)) ORDER BY username LIMIT ?) "
+            + "UNION ALL "
+            + "(SELECT 1, id, name, NULL, creator_id, 0 FROM groups WHERE LOWER(name) LIKE LOWER(?) ORDER BY name LIMIT ?) "
+            + "UNION ALL "
+            + "(SELECT 2, id, name, NULL, owner_id, 0 FROM channels WHERE LOWER(name) LIKE LOWER(?) ORDER BY name LIMIT ?) "
+            + "ORDER BY score DESC, kind, name LIMIT ?";
+
+    private final DataSource ds;
+
+    public SearchDAOImpl() {
+        this.ds = DBConnection.getInstance().getDataSource();
+    }
+
+    @Override
+    public List<Object> searchAll(String query, String currentUserId, int limit, Consumer<Statement> onExecute) throws SQLException {
+        boolean trigram = TrigramSupport.useTrigram(ds, query);
+        List<Object> results = new ArrayList<>();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement(trigram ? TRIGRAM_SQL : PLAIN_SQL)) {
+            int i = 1;
+            if (trigram) {
+                String pattern = TrigramSupport.containsPattern(query);
+                ps.setString(i++, query);
+                ps.setString(i++, query);
+                ps.setString(i++, currentUserId);
+                ps.setString(i++, pattern);
+                ps.setString(i++, pattern);
+                ps.setString(i++, query);
+                ps.setString(i++, query);
+                ps.setInt(i++, limit);
+                for (int branch = 0; branch < 2; branch++) {
+                    ps.setString(i++, query);
+                    ps.setString(i++, pattern);
+                    ps.setString(i++, query);
+                    ps.setInt(i++, limit);
+                }
+            } else {
+                String pattern = TrigramSupport.plainPattern(ds, query);
+                ps.setString(i++, currentUserId);
+                ps.setString(i++, pattern);
+                ps.setString(i++, pattern);
+                ps.setInt(i++, limit);
+                for (int branch = 0; branch < 2; branch++) {
+                    ps.setString(i++, pattern);
+                    ps.setInt(i++, limit);
+                }
+            }
+            ps.setInt(i, limit);
+
+            if (onExecute != null) onExecute.accept(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String id = rs.getString("id");
+                    String name = rs.getString("name");
+                    switch (rs.getInt("kind")) {
+                        case 0 -> results.add(new User(id, name, null, rs.getString("label")));
+                        case 1 -> results.add(new Group(id, name, rs.getString("owner_id")));
+                        default -> results.add(new Channel(id, name, rs.getString("owner_id")));
+                    }
+                }
+            } finally {
+                // Hand-off ends before the connection goes back to the pool, so a late cancel cannot hit another query
+                if (onExecute != null) onExecute.accept(null);
+            }
+        }
+        return results;
+    }
+}
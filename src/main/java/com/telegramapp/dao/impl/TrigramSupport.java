@@ -0,0 +1,69 @@
+package com.telegramapp.dao.impl;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Name searches use pg_trgm (GIN indexes, similarity ranking) when the database offers it and
+ * fall back to plain LIKE otherwise, e.g. on H2 or a Postgres without the extension.
+ */
+final class TrigramSupport {
+    /** Shorter queries yield no trigram to look up, so they are matched as a prefix instead. */
+    static final int MIN_TRIGRAM_QUERY = 3;
+
+    private static volatile Boolean available;
+
+    private TrigramSupport() { }
+
+    static boolean isAvailable(DataSource ds) {
+        Boolean result = available;
+        if (result == null) {
+            result = detect(ds);
+            if (result == null) return false;
+            available = result;
+        }
+        return result;
+    }
+
+    /**
+     * Null when the database could not be asked.
+     */
+    private static Boolean detect(DataSource ds) {
+        try (Connection conn = ds.getConnection()) {
+            if (!"PostgreSQL".equalsIgnoreCase(conn.getMetaData().getDatabaseProductName())) return false;
+            try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM pg_extension WHERE extname = 'pg_trgm'");
+                 ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            // Not cached: the next search asks again once the database is reachable.
+            return null;
+        }
+    }
+
+    static boolean useTrigram(DataSource ds, String query) {
+        return query.length() >= MIN_TRIGRAM_QUERY && isAvailable(ds);
+    }
+
+    /**
+     * LIKE pattern for the plain path. On Postgres a short query is matched as a prefix, which the
+     * text_pattern_ops indexes can answer; elsewhere it stays a substring match.
+     */
+    static String plainPattern(DataSource ds, String query) {
+        return isAvailable(ds) ? escape(query) + "%" : containsPattern(query);
+    }
+
+    /**
+     * Substring pattern for LIKE/ILIKE with the user's own wildcards escaped.
+     */
+    static String containsPattern(String query) {
+        return "%" + escape(query) + "%";
+    }
+
+    private static String escape(String query) {
+        return query.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
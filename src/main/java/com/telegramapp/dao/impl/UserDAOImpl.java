@@ -17,25 +17,8 @@ public class UserDAOImpl implements UserDAO {
     }
 
     public List<User> searchAllUsers(String query, String currentUserId) throws SQLException {
-        String sql = "SELECT * FROM users WHERE id <> ? AND (LOWER(username) LIKE LOWER(?) OR LOWER(display_name) LIKE LOWER(?)) ORDER BY username LIMIT 50";
-        List<User> users = new ArrayList<>();
-        String searchPattern = "%" + query + "%";
-
-        try (Connection conn = ds.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, currentUserId);
-            ps.setString(2, searchPattern);
-            ps.setString(3, searchPattern);
-
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    users.add(mapRowToUser(rs));
-                }
-            }
-        }
-        return users;
+        return searchUsers(query, currentUserId);
     }
-
     public void updateUserStatus(String userId, String status) throws SQLException {
         String sql = "UPDATE users SET status = ? WHERE id = ?";
         try (Connection conn = ds.getConnection();
@@ -201,15 +184,34 @@ public class UserDAOImpl implements UserDAO {
     }
 
     public List<User> searchUsersForContacts(String query, String currentUserId) throws SQLException {
-        String sql = "SELECT * FROM users WHERE id <> ? AND (LOWER(username) LIKE LOWER(?) OR LOWER(display_name) LIKE LOWER(?)) ORDER BY username LIMIT 50";
+        return searchUsers(query, currentUserId);
+    }
+
+    /**
+     * Matches username or display name, best match first. With pg_trgm the GIN indexes answer both the
+     * substring and the fuzzy (typo-tolerant) match; otherwise a plain LIKE is used.
+     */
+    private List<User> searchUsers(String query, String currentUserId) throws SQLException {
+        boolean trigram = TrigramSupport.useTrigram(ds, query);
+        String sql = trigram
+                ? "SELECT * FROM users WHERE id <> ? AND (username ILIKE ? OR display_name ILIKE ? OR username % ? OR display_name % ?) "
+                + "ORDER BY GREATEST(similarity(username, ?), similarity(display_name, ?)) DESC, username LIMIT 50"
+                : "SELECT * FROM users WHERE id <> ? AND (LOWER(username) LIKE LOWER(?) OR LOWER(display_name) LIKE LOWER(?)) ORDER BY username LIMIT 50";
         List<User> users = new ArrayList<>();
-        String searchPattern = "%" + query + "%";
 
         try (Connection conn = ds.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, currentUserId);
-            ps.setString(2, searchPattern);
-            ps.setString(3, searchPattern);
+            if (trigram) {
+                String pattern = TrigramSupport.containsPattern(query);
+                ps.setString(2, pattern);
+                ps.setString(3, pattern);
+                for (int i = 4; i <= 7; i++) ps.setString(i, query);
+            } else {
+                String pattern = TrigramSupport.plainPattern(ds, query);
+                ps.setString(2, pattern);
+                ps.setString(3, pattern);
+            }
 
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -6,12 +6,16 @@ import com.zaxxer.hikari.HikariDataSource;
 import javax.sql.DataSource;
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
 
 public class DBConnection {
     private static DBConnection instance;
     private final HikariDataSource ds;
+    private final String url;
+    private final String user;
+    private final String pass;
 
     private DBConnection() {
         try {
@@ -36,6 +40,10 @@ public class DBConnection {
             if (user == null) user = "telegram_user";
             if (pass == null) pass = "telegram_pass";
 
+            this.url = url;
+            this.user = user;
+            this.pass = pass;
+
             System.out.println("DEBUG: DB URL: " + url);
             System.out.println("DEBUG: DB User: " + user);
 
@@ -97,6 +105,14 @@ public class DBConnection {
         }
     }
 
+    /**
+     * A connection outside the pool, for long-lived sessions such as LISTEN that would otherwise
+     * hold one of the few pooled connections forever. The caller closes it.
+     */
+    public Connection openDedicatedConnection() throws SQLException {
+        return DriverManager.getConnection(url, user, pass);
+    }
+
     public void close() {
         System.out.println("DEBUG: Closing HikariDataSource");
         if (ds != null) ds.close();
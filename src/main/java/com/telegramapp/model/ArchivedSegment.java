@@ -0,0 +1,29 @@
+package com.telegramapp.model;
+
+import java.time.YearMonth;
+
+// One conversation's messages of one month, moved out of the database into a segment file (see MessageSegment).
+public class ArchivedSegment {
+    private final String conversationId;
+    private final YearMonth month;
+    private final String filePath; // Relative to the archive directory
+    private final long firstSeq;
+    private final long lastSeq;
+    private final int messageCount;
+
+    public ArchivedSegment(String conversationId, YearMonth month, String filePath, long firstSeq, long lastSeq, int messageCount) {
+        this.conversationId = conversationId;
+        this.month = month;
+        this.filePath = filePath;
+        this.firstSeq = firstSeq;
+        this.lastSeq = lastSeq;
+        this.messageCount = messageCount;
+    }
+
+    public String getConversationId() { return conversationId; }
+    public YearMonth getMonth() { return month; }
+    public String getFilePath() { return filePath; }
+    public long getFirstSeq() { return firstSeq; }
+    public long getLastSeq() { return lastSeq; }
+    public int getMessageCount() { return messageCount; }
+}
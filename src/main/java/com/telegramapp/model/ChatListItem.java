@@ -8,6 +8,7 @@ public class ChatListItem {
     private String lastMessage;
     private int unreadCount;
     private LocalDateTime lastMessageTimestamp;
+    private long lastMessageSeq; // Conversation head when the item was built; 0 for a chat without messages
 
     public ChatListItem(Object chatObject, String lastMessage, int unreadCount, LocalDateTime lastMessageTimestamp) {
         this.chatObject = chatObject;
@@ -32,6 +33,36 @@ public class ChatListItem {
         return lastMessageTimestamp;
     }
 
+    public long getLastMessageSeq() {
+        return lastMessageSeq;
+    }
+
+    public void setLastMessageSeq(long lastMessageSeq) {
+        this.lastMessageSeq = lastMessageSeq;
+    }
+
+    /**
+     * Updates the entry for a message of its chat that was sent, edited or deleted, the way
+     * re-reading the chat list would: a newer message becomes the preview and adds to the unread
+     * count (which, as in the query, counts from the head), a change of the previewed one replaces
+     * its text. The user's own messages are never unread: sending moves their read watermark up to
+     * the message (trigger advance_sender_watermark).
+     */
+    public void apply(Message message, String currentUserId) {
+        if (message.getSeq() > lastMessageSeq) {
+            unreadCount += (int) (message.getSeq() - lastMessageSeq);
+            lastMessageSeq = message.getSeq();
+            lastMessage = message.getContent();
+            lastMessageTimestamp = message.getTimestamp();
+        } else if (message.getSeq() == lastMessageSeq) {
+            lastMessage = message.getContent();
+        }
+        if (currentUserId.equals(message.getSenderId())) {
+            // Only what came after it can be unread; for an edit the watermark is past it already.
+            unreadCount = (int) Math.min(unreadCount, lastMessageSeq - message.getSeq());
+        }
+    }
+
     public String getDisplayName() {
         if (chatObject instanceof User) {
             return ((User) chatObject).getDisplayName();
@@ -15,6 +15,9 @@ public class Message {
     private LocalDateTime timestamp;
     private String readStatus;
     private String replyToMessageId; // Added for reply feature
+    private long seq; // Position within the conversation, assigned by the database on insert (0 until saved)
+    private String conversationId; // See ChatDAO.conversationIdFor; set by the database on insert
+    private long version; // Conversation change counter at this message's last insert, edit or delete
 
     // Constructor for new text messages
     public Message(String senderId, String receiverId, String receiverType, String content) {
@@ -69,11 +72,18 @@ public class Message {
     public LocalDateTime getTimestamp() { return timestamp; }
     public String getReadStatus() { return readStatus; }
     public String getReplyToMessageId() { return replyToMessageId; }
+    public long getSeq() { return seq; }
+    public String getConversationId() { return conversationId; }
+    public long getVersion() { return version; }
 
     // --- Setters ---
     public void setReadStatus(String s){ this.readStatus = s; }
     public void setContent(String content) { this.content = content; }
     public void setReplyToMessageId(String replyToMessageId) { this.replyToMessageId = replyToMessageId; }
+    public void setTimestamp(LocalDateTime timestamp) { this.timestamp = timestamp; }
+    public void setSeq(long seq) { this.seq = seq; }
+    public void setConversationId(String conversationId) { this.conversationId = conversationId; }
+    public void setVersion(long version) { this.version = version; }
 
 
     @Override
@@ -0,0 +1,24 @@
+package com.telegramapp.model;
+
+// One message-search result: the message plus a short excerpt with the matched words marked.
+public class MessageSearchHit {
+    // Markers around highlighted words in the snippet; control characters never appear in typed text.
+    public static final char HIGHLIGHT_START = '\u0002';
+    public static final char HIGHLIGHT_END = '\u0003';
+
+    private final Message message;
+    private final String snippet;
+
+    public MessageSearchHit(Message message, String snippet) {
+        this.message = message;
+        this.snippet = snippet;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public String getSnippet() {
+        return snippet;
+    }
+}
@@ -0,0 +1,60 @@
+package com.telegramapp.realtime;
+
+import com.telegramapp.util.Config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects notifications for a short window and hands them over as one batch, grouped by key
+ * (usually the chat), so a burst of messages costs one fetch per chat and one UI update instead
+ * of one of each per message.
+ * <p>
+ * The window opens with the first notification after a flush, so a lone notification is delayed
+ * by at most the window. The batch is handed over on a shared timer thread; handlers should pass
+ * real work on to their own executor.
+ */
+public class NotificationCoalescer {
+    private static final long WINDOW_MILLIS = Long.parseLong(Config.get("realtime.coalesce.ms", "50"));
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "notify-coalesce");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Consumer<Map<String, List<NotifyPayload>>> onBatch;
+    private Map<String, List<NotifyPayload>> pending = new LinkedHashMap<>(); // Guarded by this
+
+    public NotificationCoalescer(Consumer<Map<String, List<NotifyPayload>>> onBatch) {
+        this.onBatch = onBatch;
+    }
+
+    public void offer(String key, NotifyPayload payload) {
+        synchronized (this) {
+            boolean windowOpen = !pending.isEmpty();
+            pending.computeIfAbsent(key, k -> new ArrayList<>()).add(payload);
+            if (windowOpen) return;
+        }
+        timer.schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        Map<String, List<NotifyPayload>> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        try {
+            onBatch.accept(batch);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
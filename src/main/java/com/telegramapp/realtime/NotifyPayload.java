@@ -0,0 +1,106 @@
+package com.telegramapp.realtime;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.telegramapp.model.Message;
+
+import java.time.LocalDateTime;
+
+/**
+ * A parsed NOTIFY payload as emitted by the notify_new_message trigger:
+ * {"chatType":"group","id":"<receiverId>","messageId":"<uuid>","senderId":"<uuid>",
+ *  "m":[content, mediaType, mediaPath, timestamp, readStatus, replyTo, conversationId, seq, version],
+ *  "senderReadSeq":n}
+ * "m" and "senderReadSeq" are left out when the row would not fit into a notification.
+ */
+public class NotifyPayload {
+    private final String chatType;
+    private final String chatId;
+    private final String messageId;
+    private final String senderId;
+    private final Message message;
+    private final long senderReadSeq;
+
+    public NotifyPayload(String chatType, String chatId, String messageId, String senderId) {
+        this(chatType, chatId, messageId, senderId, null, 0);
+    }
+
+    public NotifyPayload(String chatType, String chatId, String messageId, String senderId, Message message, long senderReadSeq) {
+        this.chatType = chatType;
+        this.chatId = chatId;
+        this.messageId = messageId;
+        this.senderId = senderId;
+        this.message = message;
+        this.senderReadSeq = senderReadSeq;
+    }
+
+    /**
+     * Returns null for payloads that are not valid JSON or lack the routing fields.
+     */
+    public static NotifyPayload parse(String json) {
+        try {
+            JsonObject obj = JsonParser.parseString(json).getAsJsonObject();
+            String chatType = getString(obj, "chatType");
+            String chatId = getString(obj, "id");
+            if (chatType == null || chatId == null) return null;
+            String messageId = getString(obj, "messageId");
+            String senderId = getString(obj, "senderId");
+            JsonElement row = obj.get("m");
+            Message message = row == null || !row.isJsonArray() || messageId == null
+                    ? null : decodeMessage(messageId, senderId, chatType, chatId, row.getAsJsonArray());
+            String readSeq = getString(obj, "senderReadSeq");
+            return new NotifyPayload(chatType, chatId, messageId, senderId, message, readSeq == null ? 0 : Long.parseLong(readSeq));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Message decodeMessage(String messageId, String senderId, String chatType, String chatId, JsonArray row) {
+        Message m = new Message(messageId, senderId, chatId, chatType.toUpperCase(),
+                getString(row, 0), getString(row, 1), getString(row, 2),
+                LocalDateTime.parse(getString(row, 3)), getString(row, 4), getString(row, 5));
+        m.setConversationId(getString(row, 6));
+        m.setSeq(row.get(7).getAsLong());
+        m.setVersion(row.get(8).getAsLong());
+        return m;
+    }
+
+    /**
+     * Channel name used by the database triggers, e.g. group_0d6b2a6e7b2a4b7c9d2f3a4b5c6d7e8f.
+     * Hyphens are stripped so the name stays a valid, short identifier.
+     */
+    public static String channelFor(String chatType, String chatId) {
+        return chatType.toLowerCase() + "_" + chatId.replace("-", "");
+    }
+
+    /**
+     * Channel for typing signals of a chat; like message notifications, those of a direct chat go to
+     * the recipient's channel.
+     */
+    public static String typingChannelFor(String chatType, String chatId) {
+        return "typing_" + channelFor(chatType, chatId);
+    }
+
+    private static String getString(JsonObject obj, String key) {
+        JsonElement el = obj.get(key);
+        return el == null || el.isJsonNull() ? null : el.getAsString();
+    }
+
+    private static String getString(JsonArray array, int index) {
+        JsonElement el = array.get(index);
+        return el.isJsonNull() ? null : el.getAsString();
+    }
+
+    public String getChatType() { return chatType; }
+    public String getChatId() { return chatId; }
+    public String getMessageId() { return messageId; }
+    public String getSenderId() { return senderId; }
+    public Message getMessage() { return message; } // Null when the payload only carries the id
+    public long getSenderReadSeq() { return senderReadSeq; }
+
+    public String getChannel() {
+        return channelFor(chatType, chatId);
+    }
+}
@@ -1,101 +1,323 @@
 package com.telegramapp.realtime;
 
+import com.telegramapp.db.DBConnection;
+import com.telegramapp.util.Config;
 import org.postgresql.PGConnection;
 import org.postgresql.PGNotification;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import com.telegramapp.db.DBConnection;
 
+/**
+ * Receives NOTIFY events on one dedicated connection (outside the pool) and routes each one to the
+ * handlers subscribed to its channel.
+ * <p>
+ * Only the receive loop touches the connection. Subscribing just updates the registry and marks the
+ * channel; the loop brings its LISTEN set in line with the registry in one batched round trip. So
+ * that it does not have to wait for its poll timeout first, a change wakes it with a NOTIFY on a
+ * channel private to this client. While notifications keep arriving the connection is evidently
+ * alive, so the keepalive query only runs after a quiet period.
+ * <p>
+ * A connection that breaks is re-opened after an exponentially growing, randomized delay, so clients
+ * that lost the database at the same moment do not all come back at the same moment. Notifications
+ * sent while disconnected are lost; the connect listener runs after every (re)connect, once the
+ * channels are listened to again, so the application can fetch whatever it missed.
+ * <p>
+ * Handlers run on a small bounded pool. When it is saturated the receive loop runs the handler
+ * itself, which slows down reading instead of queueing without limit. Handlers of one channel may
+ * therefore run concurrently, and notifications reach them in no guaranteed order. Consumers that
+ * apply the rows carried by payloads must check that the versions follow on from what they have
+ * and fetch the gap otherwise.
+ */
+public class PgNotifyClient implements AutoCloseable {
+    private static final int MAX_STATEMENTS_PER_BATCH = 200;
 
+    private final long keepaliveMillis = Long.parseLong(Config.get("realtime.keepalive.ms", "30000"));
+    private final long reconnectBaseMillis = Long.parseLong(Config.get("realtime.reconnect.base.ms", "500"));
+    private final long reconnectMaxMillis = Long.parseLong(Config.get("realtime.reconnect.max.ms", "30000"));
+    private final String wakeChannel = "notify_wake_" + UUID.randomUUID().toString().replace("-", "");
 
-public class PgNotifyClient implements AutoCloseable {
-    private final Consumer<String> onNotify;
-    private volatile boolean running = false;
-    private Thread loopThread;
-    private Connection conn;
+    private final Map<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
+    private final Set<String> pendingChannels = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean wakeRequested = new AtomicBoolean();
+    private final ExecutorService handlers = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1024), daemonThreads("notify-handler"), new ThreadPoolExecutor.CallerRunsPolicy());
+    // Sends wake-ups and published signals over a pooled connection, off the caller's (usually the FX) thread.
+    private final ExecutorService waker = Executors.newSingleThreadExecutor(daemonThreads("notify-wake"));
+
+    // Owned by the receive loop; close() only closes the connection to end a blocking poll.
+    private final Set<String> listening = new HashSet<>();
+    private volatile Connection conn;
     private PGConnection pgConn;
-    private final Set<String> channels = new HashSet<>();
 
-    public PgNotifyClient(Consumer<String> onNotify) {
-        this.onNotify = onNotify;
-    }
+    private volatile boolean running = false;
+    private volatile boolean connected = false;
+    private volatile Runnable connectListener;
+    private Thread loopThread;
 
-    public synchronized void start() throws SQLException {
+    public synchronized void start() {
         if (running) return;
-        conn = DBConnection.getInstance().getDataSource().getConnection();
-        pgConn = conn.unwrap(PGConnection.class);
         running = true;
         loopThread = new Thread(this::loop, "PgNotifyClient-Loop");
         loopThread.setDaemon(true);
         loopThread.start();
     }
 
-    public synchronized void listen(String channel) {
-        if (!running) throw new IllegalStateException("Start the client before listen()");
-        if (channels.contains(channel)) return;
-        try (Statement st = conn.createStatement()) {
-            st.execute("LISTEN \"" + channel + "\"");
-            channels.add(channel);
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to LISTEN " + channel, e);
+    /**
+     * Delivers the payload of every notification on the channel to the handler until the returned
+     * action is run. May be called before {@link #start()} and from any thread.
+     */
+    public Runnable subscribe(String channel, Consumer<String> handler) {
+        subscribers.compute(channel, (ch, list) -> {
+            List<Consumer<String>> handlersOfChannel = list == null ? new CopyOnWriteArrayList<>() : list;
+            handlersOfChannel.add(handler);
+            return handlersOfChannel;
+        });
+        channelChanged(channel);
+        return () -> {
+            subscribers.computeIfPresent(channel, (ch, list) -> {
+                list.remove(handler);
+                return list.isEmpty() ? null : list;
+            });
+            channelChanged(channel);
+        };
+    }
+
+    public boolean isConnected() {
+        return running && connected;
+    }
+
+    /**
+     * Runs on the handler pool after every successful (re)connect, once all subscribed channels are listened to.
+     */
+    public void setConnectListener(Runnable listener) {
+        this.connectListener = listener;
+    }
+
+    private void channelChanged(String channel) {
+        pendingChannels.add(channel);
+        // One wake-up covers every change made until the loop picks them up.
+        if (connected && wakeRequested.compareAndSet(false, true)) {
+            waker.execute(this::sendWake);
         }
     }
 
-    public synchronized void unlisten(String channel) {
-        if (!running || !channels.contains(channel)) return;
-        try (Statement st = conn.createStatement()) {
-            st.execute("UNLISTEN \"" + channel + "\"");
-            channels.remove(channel);
+    private void sendWake() {
+        try {
+            send(wakeChannel, "");
         } catch (SQLException e) {
-            // ignore
+            // The loop still applies the change when it next wakes up on its own.
+            wakeRequested.set(false);
+        }
+    }
+
+    /**
+     * Sends a notification that is not tied to a table change, in the background and at most once:
+     * a signal that cannot be sent is dropped.
+     */
+    public void publish(String channel, String payload) {
+        waker.execute(() -> {
+            try {
+                send(channel, payload);
+            } catch (SQLException e) {
+                System.err.println("Could not publish on " + channel + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private static void send(String channel, String payload) throws SQLException {
+        try (Connection c = DBConnection.getInstance().getDataSource().getConnection();
+             PreparedStatement ps = c.prepareStatement("SELECT pg_notify(?, ?)")) {
+            ps.setString(1, channel);
+            ps.setString(2, payload);
+            ps.execute();
         }
     }
 
     private void loop() {
+        long lastActivity = System.currentTimeMillis();
+        int failures = 0;
         while (running) {
             try {
-                // getNotifications(timeoutMillis) available on PGConnection
-                PGNotification[] notifications = pgConn.getNotifications(5000);
-                if (notifications != null) {
+                boolean reconnected = false;
+                if (conn == null) {
+                    connect();
+                    // close() may have run while connecting and missed the new connection.
+                    if (!running) break;
+                    lastActivity = System.currentTimeMillis();
+                    reconnected = true;
+                }
+                wakeRequested.set(false);
+                applySubscriptionChanges();
+                if (reconnected) {
+                    failures = 0;
+                    Runnable listener = connectListener;
+                    if (listener != null) runHandler(listener);
+                }
+
+                PGNotification[] notifications = pgConn.getNotifications((int) keepaliveMillis);
+                if (notifications != null && notifications.length > 0) {
+                    lastActivity = System.currentTimeMillis();
                     for (PGNotification n : notifications) {
-                        try {
-                            if (onNotify != null) onNotify.accept(n.getParameter());
-                        } catch (Throwable ignore) { }
+                        if (!wakeChannel.equals(n.getName())) dispatch(n.getName(), n.getParameter());
+                    }
+                } else if (System.currentTimeMillis() - lastActivity >= keepaliveMillis) {
+                    // Quiet for a while: make sure the connection is still there.
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("SELECT 1");
                     }
+                    lastActivity = System.currentTimeMillis();
                 }
-                // keep connection alive
-                try (Statement st = conn.createStatement()) { st.execute("SELECT 1"); }
             } catch (SQLException e) {
-                // attempt reconnect with small backoff
-                try { if (conn != null) conn.close(); } catch (Exception ignore) {}
+                disconnect();
+                if (!running) break;
                 try {
-                    Thread.sleep(Duration.ofSeconds(2).toMillis());
-                } catch (InterruptedException ie) { /* ignore */ }
-                try {
-                    conn = DBConnection.getInstance().getDataSource().getConnection();
-                    pgConn = conn.unwrap(PGConnection.class);
-                    // re-listen channels
-                    for (String ch : new HashSet<>(channels)) {
-                        try (Statement st = conn.createStatement()) { st.execute("LISTEN \"" + ch + "\""); }
-                        catch (SQLException ignore) { /* ignore */ }
-                    }
-                } catch (SQLException re) {
-                    // keep trying
+                    Thread.sleep(reconnectDelay(failures++));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
         }
+        disconnect();
+    }
+
+    /**
+     * "Full jitter": uniformly random up to an exponentially growing ceiling.
+     */
+    private long reconnectDelay(int failures) {
+        long ceiling = Math.min(reconnectMaxMillis, reconnectBaseMillis << Math.min(failures, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void connect() throws SQLException {
+        conn = DBConnection.getInstance().openDedicatedConnection();
+        pgConn = conn.unwrap(PGConnection.class);
+        listening.clear();
+        // Every channel has to be listened to again on the new session.
+        pendingChannels.addAll(subscribers.keySet());
+        execute(List.of("LISTEN " + quote(wakeChannel)));
+        connected = true;
+    }
+
+    private void disconnect() {
+        connected = false;
+        listening.clear();
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException ignored) {
+                // Already broken
+            }
+        }
+        conn = null;
+        pgConn = null;
+    }
+
+    /**
+     * Brings the session's LISTEN set in line with the registry for every channel that changed.
+     */
+    private void applySubscriptionChanges() throws SQLException {
+        if (pendingChannels.isEmpty()) return;
+        List<String> statements = new ArrayList<>();
+        List<String> listened = new ArrayList<>();
+        List<String> unlistened = new ArrayList<>();
+        for (Iterator<String> it = pendingChannels.iterator(); it.hasNext(); ) {
+            String channel = it.next();
+            it.remove();
+            boolean wanted = subscribers.containsKey(channel);
+            if (wanted && !listening.contains(channel)) {
+                statements.add("LISTEN " + quote(channel));
+                listened.add(channel);
+            } else if (!wanted && listening.contains(channel)) {
+                statements.add("UNLISTEN " + quote(channel));
+                unlistened.add(channel);
+            }
+        }
+        // On failure the loop reconnects, and connect() queues every subscribed channel again.
+        for (int from = 0; from < statements.size(); from += MAX_STATEMENTS_PER_BATCH) {
+            execute(statements.subList(from, Math.min(from + MAX_STATEMENTS_PER_BATCH, statements.size())));
+        }
+        listening.addAll(listened);
+        listening.removeAll(unlistened);
+    }
+
+    private void execute(List<String> statements) throws SQLException {
+        if (statements.isEmpty()) return;
+        try (Statement st = conn.createStatement()) {
+            st.execute(String.join("; ", statements));
+        }
+    }
+
+    private void dispatch(String channel, String payload) {
+        List<Consumer<String>> handlersOfChannel = subscribers.get(channel);
+        if (handlersOfChannel == null) return;
+        for (Consumer<String> handler : handlersOfChannel) {
+            runHandler(() -> handler.accept(payload));
+        }
+    }
+
+    /**
+     * Runs on the pool, or on the loop thread when the pool is saturated; either way a failing
+     * handler must not take the receive loop down with it.
+     */
+    private void runHandler(Runnable handler) {
+        handlers.execute(() -> {
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private static String quote(String channel) {
+        return "\"" + channel.replace("\"", "\"\"") + "\"";
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
     }
 
     @Override
     public synchronized void close() {
         running = false;
-        try { if (loopThread != null) loopThread.interrupt(); } catch (Exception ignore) {}
-        try { if (conn != null) conn.close(); } catch (Exception ignore) {}
+        connected = false;
+        if (loopThread != null) loopThread.interrupt();
+        // The loop may be waiting for notifications for up to the keepalive period; closing the socket ends that now.
+        Connection c = conn;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (SQLException ignored) {
+                // Already broken
+            }
+        }
+        handlers.shutdown();
+        waker.shutdown();
     }
 }
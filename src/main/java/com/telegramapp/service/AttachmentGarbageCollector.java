@@ -0,0 +1,57 @@
+package com.telegramapp.service;
+
+import com.telegramapp.dao.AttachmentDAO;
+import com.telegramapp.dao.impl.AttachmentDAOImpl;
+import com.telegramapp.util.Config;
+import com.telegramapp.util.ImageStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes stored attachments that no message references any more (see attachment_refs).
+ * Files younger than the grace period are kept, so an upload whose message has not been
+ * inserted yet, or a blob that was just deduplicated into a new message, is never collected.
+ */
+public class AttachmentGarbageCollector {
+    private static final int LOOKUP_BATCH = 500;
+
+    private final AttachmentDAO attachmentDAO;
+    private final long graceMillis = TimeUnit.HOURS.toMillis(Long.parseLong(Config.get("attachments.gc.grace.hours", "24")));
+
+    public AttachmentGarbageCollector() {
+        this.attachmentDAO = new AttachmentDAOImpl();
+    }
+
+    /**
+     * @return number of files removed
+     */
+    public int collect() throws IOException, SQLException {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        List<Path> candidates = new ArrayList<>();
+        for (Path file : ImageStorage.listAttachments()) {
+            if (Files.getLastModifiedTime(file).toMillis() < cutoff) candidates.add(file);
+        }
+
+        int removed = 0;
+        for (int from = 0; from < candidates.size(); from += LOOKUP_BATCH) {
+            List<Path> batch = candidates.subList(from, Math.min(from + LOOKUP_BATCH, candidates.size()));
+            Set<String> referenced = attachmentDAO.findReferencedPaths(batch.stream().map(Path::toString).toList());
+            for (Path file : batch) {
+                if (!referenced.contains(file.toString())) {
+                    ImageStorage.deleteAttachment(file);
+                    removed++;
+                }
+            }
+        }
+        attachmentDAO.deleteUnreferenced();
+        ImageStorage.deleteStaleUploads(cutoff);
+        return removed;
+    }
+}
@@ -0,0 +1,84 @@
+package com.telegramapp.service;
+
+import com.telegramapp.dao.ArchiveDAO;
+import com.telegramapp.dao.MessagePartitionDAO;
+import com.telegramapp.dao.impl.ArchiveDAOImpl;
+import com.telegramapp.dao.impl.MessagePartitionDAOImpl;
+import com.telegramapp.model.ArchivedSegment;
+import com.telegramapp.model.Message;
+import com.telegramapp.util.Config;
+import com.telegramapp.util.MessageSegment;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves months older than archive.after.months out of the messages table: every conversation's
+ * messages of the month are written to a segment file, the segments are recorded in
+ * archived_segments, and only then is the month's partition detached and dropped. MessageDAO
+ * reads through to the segments, so history stays reachable.
+ * <p>
+ * Each step can be repeated, so a run that was interrupted is simply finished by the next one.
+ * Messages are immutable once archived: edits and deletions of archived messages are not applied.
+ */
+public class MessageArchiver {
+    private final MessagePartitionDAO partitionDAO;
+    private final ArchiveDAO archiveDAO;
+    private final int afterMonths = Integer.parseInt(Config.get("archive.after.months", "12"));
+
+    public MessageArchiver() {
+        this.partitionDAO = new MessagePartitionDAOImpl();
+        this.archiveDAO = new ArchiveDAOImpl();
+    }
+
+    /**
+     * @return number of months archived
+     */
+    public int archive() throws IOException, SQLException {
+        int archived = 0;
+        for (String partition : partitionDAO.findPartitionsBefore(YearMonth.now().minusMonths(afterMonths))) {
+            archivePartition(partition);
+            archived++;
+        }
+        return archived;
+    }
+
+    private void archivePartition(String partition) throws IOException, SQLException {
+        // messages_YYYY_MM
+        YearMonth month = YearMonth.of(Integer.parseInt(partition.substring(9, 13)), Integer.parseInt(partition.substring(14, 16)));
+        List<ArchivedSegment> segments = new ArrayList<>();
+        List<Message> conversation = new ArrayList<>();
+        try {
+            // Rows arrive grouped by conversation, so only one conversation's month is held at a time.
+            partitionDAO.readPartition(partition, m -> {
+                if (!conversation.isEmpty() && !conversation.get(0).getConversationId().equals(m.getConversationId())) {
+                    segments.add(writeSegment(month, conversation));
+                    conversation.clear();
+                }
+                conversation.add(m);
+            });
+            if (!conversation.isEmpty()) segments.add(writeSegment(month, conversation));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        archiveDAO.saveSegments(segments);
+        partitionDAO.detachPartition(partition);
+        partitionDAO.dropDetachedPartition(partition);
+    }
+
+    private static ArchivedSegment writeSegment(YearMonth month, List<Message> messages) {
+        String conversationId = messages.get(0).getConversationId();
+        String path = MessageSegment.relativePath(conversationId, month);
+        try {
+            MessageSegment.write(MessageSegment.archivePath(path), conversationId, messages);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ArchivedSegment(conversationId, month, path,
+                messages.get(0).getSeq(), messages.get(messages.size() - 1).getSeq(), messages.size());
+    }
+}
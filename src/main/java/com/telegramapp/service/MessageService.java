@@ -1,13 +1,16 @@
 package com.telegramapp.service;
 
+import com.telegramapp.dao.ChatDAO;
 import com.telegramapp.dao.MessageDAO;
 import com.telegramapp.dao.impl.MessageDAOImpl;
 import com.telegramapp.model.Message;
+import com.telegramapp.model.MessageSearchHit;
 
 import java.sql.SQLException;
-import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class MessageService {
     private final MessageDAO dao;
@@ -16,9 +19,22 @@ public class MessageService {
         this.dao = new MessageDAOImpl();
     }
 
+    /**
+     * Blocks until the message is committed; it goes through the shared batching writer,
+     * so concurrent sends share one transaction.
+     */
     public void sendMessage(Message m) throws SQLException {
+        try {
+            sendMessageAsync(m).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException sqlException) throw sqlException;
+            throw new SQLException("Failed to send message", e.getCause());
+        }
+    }
+
+    public CompletableFuture<Message> sendMessageAsync(Message m) {
         m.setReadStatus("UNREAD");
-        dao.save(m);
+        return MessageWriter.getInstance().submit(m);
     }
 
     public void editMessage(Message message) throws SQLException {
@@ -33,14 +49,49 @@ public class MessageService {
         return dao.findConversation(receiverType, receiverId, currentUserId);
     }
 
-    public List<Message> loadNewSince(String receiverType, String receiverId, String currentUserId, LocalDateTime since) throws SQLException {
-        return dao.findNewMessagesAfter(receiverType, receiverId, currentUserId, since);
+    public List<Message> loadLatestPage(String receiverType, String receiverId, String currentUserId, int pageSize) throws SQLException {
+        return dao.findConversationPage(receiverType, receiverId, currentUserId, null, pageSize);
+    }
+
+    public List<Message> loadPageBefore(String receiverType, String receiverId, String currentUserId, Message oldestLoaded, int pageSize) throws SQLException {
+        return dao.findConversationPage(receiverType, receiverId, currentUserId, oldestLoaded.getSeq(), oldestLoaded.getTimestamp(), pageSize);
+    }
+
+    public List<Message> loadAfterSeq(String receiverType, String receiverId, String currentUserId, long afterSeq) throws SQLException {
+        return dao.findAfterSeq(receiverType, receiverId, currentUserId, afterSeq);
+    }
+
+    /**
+     * Current state of every message that was sent, edited or deleted after the given version.
+     */
+    public List<Message> loadChangesSince(String receiverType, String receiverId, String currentUserId, long sinceVersion) throws SQLException {
+        return dao.findChangesSince(receiverType, receiverId, currentUserId, sinceVersion);
+    }
+
+    /**
+     * Full-text search in every chat of the user, newest first. Pass the last hit of the previous page as cursor.
+     */
+    public List<MessageSearchHit> searchAllChats(String userId, String query, MessageSearchHit cursor, int pageSize) throws SQLException {
+        return dao.searchMessages(userId, query, null, cursor, pageSize, null);
+    }
+
+    public List<MessageSearchHit> searchChat(String receiverType, String receiverId, String userId, String query, MessageSearchHit cursor, int pageSize) throws SQLException {
+        String conversationId = ChatDAO.conversationIdFor(receiverType, receiverId, userId);
+        return dao.searchMessages(userId, query, conversationId, cursor, pageSize, null);
     }
 
     public void markMessagesAsRead(String receiverType, String receiverId, String userId) throws SQLException {
         dao.markMessagesAsRead(receiverType, receiverId, userId);
     }
 
+    public long getHeadSeq(String receiverType, String receiverId, String currentUserId) throws SQLException {
+        return dao.findHeadSeq(receiverType, receiverId, currentUserId);
+    }
+
+    public long getPeerReadSeq(String receiverType, String receiverId, String currentUserId) throws SQLException {
+        return dao.findPeerReadSeq(receiverType, receiverId, currentUserId);
+    }
+
     public Optional<Message> getMessageById(String messageId) throws SQLException {
         return dao.findById(messageId);
     }
@@ -0,0 +1,111 @@
+package com.telegramapp.service;
+
+import com.telegramapp.dao.MessageDAO;
+import com.telegramapp.dao.impl.MessageDAOImpl;
+import com.telegramapp.model.Message;
+import com.telegramapp.util.Config;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for outgoing messages. Inserts submitted within a short window (or until the batch
+ * is full) are written by one thread as a single JDBC batch in one transaction, so a burst of sends
+ * costs one pooled connection and one commit instead of one of each per message.
+ */
+public class MessageWriter {
+    private static MessageWriter instance;
+
+    private final int maxBatch = Integer.parseInt(Config.get("writer.batch.size", "100"));
+    private final long lingerNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(Config.get("writer.linger.ms", "5")));
+
+    private final MessageDAO messageDAO;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    private static class Pending {
+        final Message message;
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        Pending(Message message) { this.message = message; }
+    }
+
+    private MessageWriter() {
+        this.messageDAO = new MessageDAOImpl();
+        Thread t = new Thread(this::run, "message-writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public static synchronized MessageWriter getInstance() {
+        if (instance == null) {
+            instance = new MessageWriter();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a message for insertion. The future completes with the same message (seq and
+     * conversationId filled in) once its batch has committed, or exceptionally with the SQLException.
+     */
+    public CompletableFuture<Message> submit(Message m) {
+        Pending p = new Pending(m);
+        queue.add(p);
+        return p.future;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                // The first message opens the window; keep collecting until it closes or the batch is full.
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                queue.drainTo(batch, maxBatch - batch.size());
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                batch.forEach(p -> p.future.completeExceptionally(e));
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        List<Message> messages = batch.stream().map(p -> p.message).toList();
+        try {
+            messageDAO.saveAll(messages);
+            batch.forEach(p -> p.future.complete(p.message));
+        } catch (SQLException batchError) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(batchError);
+                return;
+            }
+            // The whole transaction rolled back; retry one by one so a single bad row
+            // (e.g. a dangling reply id) only fails its own sender.
+            for (Pending p : batch) {
+                try {
+                    messageDAO.save(p.message);
+                    p.future.complete(p.message);
+                } catch (SQLException e) {
+                    p.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+}
@@ -1,27 +1,23 @@
 package com.telegramapp.service;
 
-import com.telegramapp.dao.impl.MessageDAOImpl;
 import com.telegramapp.model.Message;
 
-import java.sql.SQLException;
 import java.util.UUID;
 
 
 public class NotificationService {
-    private final MessageDAOImpl messageDAO;
-
-    public NotificationService() {
-        this.messageDAO = new MessageDAOImpl();
-    }
 
+    /**
+     * Fire-and-forget: notifications are queued on the batching writer, so a loop over many
+     * recipients is committed in a few large transactions rather than one per recipient.
+     */
     public void sendNotification(UUID recipient, String text) {
-        try {
-            String recipientStr = recipient == null ? null : recipient.toString();
-            String systemSender = "system";
-            Message m = new Message(systemSender, recipientStr, "USER", text);
-            messageDAO.save(m);
-        } catch (SQLException e) {
+        String recipientStr = recipient == null ? null : recipient.toString();
+        String systemSender = "system";
+        Message m = new Message(systemSender, recipientStr, "USER", text);
+        MessageWriter.getInstance().submit(m).exceptionally(e -> {
             e.printStackTrace();
-        }
+            return null;
+        });
     }
 }
@@ -1,28 +1,141 @@
 package com.telegramapp.service;
 
+import com.telegramapp.dao.MessageDAO;
 import com.telegramapp.dao.impl.MessageDAOImpl;
 import com.telegramapp.model.Message;
+import com.telegramapp.realtime.NotifyPayload;
+import com.telegramapp.realtime.PgNotifyClient;
 
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
-
+/**
+ * Process-wide hub for database NOTIFY events. All controllers share one PgNotifyClient
+ * (and therefore one LISTEN connection), which routes each notification to the handlers
+ * registered for its channel.
+ * <p>
+ * Notifications sent while the connection was down are lost, so after every (re)connect the
+ * tracked conversations are caught up: one query fetches the changes of all of them since each
+ * one's own high-water mark, and every tracker gets the rows of its conversation.
+ */
 public class RealtimeService {
-    private final MessageDAOImpl messageDAO;
+    private static RealtimeService instance;
+
+    private final PgNotifyClient client = new PgNotifyClient();
+    private final MessageDAO messageDAO = new MessageDAOImpl();
+    private final List<Tracker> trackers = new CopyOnWriteArrayList<>();
+    private final List<Runnable> resyncListeners = new CopyOnWriteArrayList<>();
 
-    public RealtimeService() {
-        this.messageDAO = new MessageDAOImpl();
+    private record Tracker(String conversationId, LongSupplier syncedVersion, Consumer<List<Message>> onMissed) { }
+
+    private RealtimeService() {
+        client.setConnectListener(this::catchUp);
     }
 
-    public void publishSystemMessage(UUID receiverId, String receiverType, String text) {
-        try {
-            String receiverIdStr = receiverId == null ? null : receiverId.toString();
+    public static synchronized RealtimeService getInstance() {
+        if (instance == null) {
+            instance = new RealtimeService();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts receiving in the background; until connected, callers fall back to polling. Safe to call more than once.
+     */
+    public void start() {
+        client.start();
+    }
+
+    /**
+     * True while notifications are being received; callers poll only when this is false.
+     */
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    /**
+     * Registers a handler for a channel (see {@link NotifyPayload#channelFor}). Handlers run on the
+     * client's handler pool and should hand longer work off to another executor.
+     *
+     * @return an action that removes the subscription again
+     */
+    public Runnable subscribe(String channel, Consumer<NotifyPayload> handler) {
+        return client.subscribe(channel, rawPayload -> {
+            NotifyPayload payload = NotifyPayload.parse(rawPayload);
+            if (payload != null) handler.accept(payload);
+        });
+    }
+
+    /**
+     * Like {@link #subscribe}, for channels whose payloads are not trigger notifications (see {@link #publish}).
+     */
+    public Runnable subscribeRaw(String channel, Consumer<String> handler) {
+        return client.subscribe(channel, handler);
+    }
+
+    /**
+     * Sends an ephemeral signal to the listeners of a channel; nothing is stored, and a signal that
+     * cannot be sent is dropped.
+     */
+    public void publish(String channel, String payload) {
+        client.publish(channel, payload);
+    }
+
+    /**
+     * After every (re)connect, hands onMissed the changes of the conversation newer than
+     * syncedVersion (skipped while that is negative). Runs on the client's handler pool.
+     *
+     * @return an action that stops tracking again
+     */
+    public Runnable trackConversation(String conversationId, LongSupplier syncedVersion, Consumer<List<Message>> onMissed) {
+        Tracker tracker = new Tracker(conversationId, syncedVersion, onMissed);
+        trackers.add(tracker);
+        return () -> trackers.remove(tracker);
+    }
+
+    /**
+     * Runs the action after every (re)connect, for state that is simply reloaded rather than caught up.
+     *
+     * @return an action that removes the listener again
+     */
+    public Runnable onResync(Runnable action) {
+        resyncListeners.add(action);
+        return () -> resyncListeners.remove(action);
+    }
 
-            String systemSender = "system";
-            Message m = new Message(systemSender, receiverIdStr, receiverType, text);
-            messageDAO.save(m);
+    private void catchUp() {
+        Map<String, Long> marks = new HashMap<>();
+        for (Tracker t : trackers) {
+            long version = t.syncedVersion().getAsLong();
+            if (version >= 0) marks.merge(t.conversationId(), version, Math::min);
+        }
+        try {
+            Map<String, List<Message>> missed = messageDAO.findChangesSince(marks);
+            for (Tracker t : trackers) {
+                List<Message> changes = missed.get(t.conversationId());
+                if (changes != null) t.onMissed().accept(changes);
+            }
         } catch (SQLException e) {
+            // Trackers still poll while disconnected and fetch on the next notification.
             e.printStackTrace();
         }
+        resyncListeners.forEach(Runnable::run);
+    }
+
+    public void publishSystemMessage(UUID receiverId, String receiverType, String text) {
+        String receiverIdStr = receiverId == null ? null : receiverId.toString();
+
+        String systemSender = "system";
+        Message m = new Message(systemSender, receiverIdStr, receiverType, text);
+        MessageWriter.getInstance().submit(m).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
     }
 }
@@ -0,0 +1,177 @@
+package com.telegramapp.service;
+
+import com.telegramapp.dao.MessageDAO;
+import com.telegramapp.dao.SearchDAO;
+import com.telegramapp.dao.impl.MessageDAOImpl;
+import com.telegramapp.dao.impl.SearchDAOImpl;
+import com.telegramapp.model.Channel;
+import com.telegramapp.model.Group;
+import com.telegramapp.model.MessageSearchHit;
+import com.telegramapp.model.User;
+import com.telegramapp.util.Config;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.util.Duration;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Global search as the user types: chats by name, then messages by content. Input is debounced,
+ * only the newest query is ever run (a superseded one is cancelled on the server), and all searches
+ * share one thread, so at most one pooled connection is busy with search no matter how fast someone
+ * types. Recent results are kept for a short while: backspacing re-uses them, and while a longer
+ * query is pending its results are pre-filtered from the closest cached prefix.
+ * <p>
+ * {@link #search} and {@link #cancel} must be called on the FX thread; results are delivered there too.
+ */
+public class SearchService {
+    private static final int CACHE_ENTRIES = 64;
+    private static final String CANCELLED_STATE = "57014"; // Postgres query_canceled
+
+    private final int maxResults = Integer.parseInt(Config.get("search.max.results", "50"));
+    private final int maxMessageResults = Integer.parseInt(Config.get("search.max.message.results", "20"));
+    private final long cacheTtlMillis = Long.parseLong(Config.get("search.cache.ttl.ms", "30000"));
+
+    private final SearchDAO searchDAO;
+    private final MessageDAO messageDAO;
+    private final Consumer<List<Object>> onResults;
+    private final PauseTransition debounce;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "search");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicReference<Statement> running = new AtomicReference<>();
+
+    private final Map<String, Cached> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    private record Cached(List<Object> results, long fetchedAt) { }
+
+    private String pendingQuery;
+    private String pendingUserId;
+
+    public SearchService(Consumer<List<Object>> onResults) {
+        this.searchDAO = new SearchDAOImpl();
+        this.messageDAO = new MessageDAOImpl();
+        this.onResults = onResults;
+        this.debounce = new PauseTransition(Duration.millis(Long.parseLong(Config.get("search.debounce.ms", "200"))));
+        this.debounce.setOnFinished(e -> runPending());
+    }
+
+    public void search(String query, String currentUserId) {
+        cancel();
+        pendingQuery = query;
+        pendingUserId = currentUserId;
+
+        Cached exact = freshEntry(cacheKey(query, currentUserId));
+        if (exact != null) {
+            onResults.accept(exact.results());
+            return;
+        }
+        List<Object> provisional = filterClosestPrefix(query, currentUserId);
+        if (provisional != null) onResults.accept(provisional);
+        debounce.playFromStart();
+    }
+
+    /**
+     * Drops the pending query and stops the running one; late results are discarded.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        debounce.stop();
+        Statement statement = running.getAndSet(null);
+        if (statement != null) {
+            // Cancelling opens a connection to the server, so keep it off the FX thread.
+            CompletableFuture.runAsync(() -> {
+                try {
+                    statement.cancel();
+                } catch (SQLException ignored) {
+                    // The query finished or the statement closed in the meantime
+                }
+            });
+        }
+    }
+
+    private void runPending() {
+        String query = pendingQuery;
+        String userId = pendingUserId;
+        long gen = generation.get();
+        executor.execute(() -> {
+            if (gen != generation.get()) return; // Superseded while queued
+            List<Object> results;
+            try {
+                results = new ArrayList<>(searchDAO.searchAll(query, userId, maxResults, running::set));
+                // Chats first, then matching messages; skipped if the query was superseded meanwhile.
+                running.set(null);
+                if (gen != generation.get()) return;
+                results.addAll(messageDAO.searchMessages(userId, query, null, null, maxMessageResults, running::set));
+            } catch (SQLException e) {
+                if (!CANCELLED_STATE.equals(e.getSQLState()) && gen == generation.get()) e.printStackTrace();
+                return;
+            }
+            Platform.runLater(() -> {
+                // Even a superseded result is worth caching: the user may backspace to it.
+                cache.put(cacheKey(query, userId), new Cached(results, System.currentTimeMillis()));
+                if (gen == generation.get()) onResults.accept(results);
+            });
+        });
+    }
+
+    /**
+     * Results for the longest cached prefix of the query, narrowed to items that still match.
+     * Only an approximation (fuzzy matches and ranking can differ), shown until the real results arrive.
+     */
+    private List<Object> filterClosestPrefix(String query, String userId) {
+        for (int len = query.length() - 1; len > 0; len--) {
+            Cached prefix = freshEntry(cacheKey(query.substring(0, len), userId));
+            if (prefix != null) {
+                String needle = query.toLowerCase();
+                return prefix.results().stream().filter(item -> matches(item, needle)).toList();
+            }
+        }
+        return null;
+    }
+
+    private Cached freshEntry(String key) {
+        Cached cached = cache.get(key);
+        if (cached == null) return null;
+        if (System.currentTimeMillis() - cached.fetchedAt() > cacheTtlMillis) {
+            cache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    private static boolean matches(Object item, String needle) {
+        if (item instanceof User u) return contains(u.getUsername(), needle) || contains(u.getDisplayName(), needle);
+        if (item instanceof Group g) return contains(g.getName(), needle);
+        if (item instanceof Channel c) return contains(c.getName(), needle);
+        if (item instanceof MessageSearchHit hit) return contains(hit.getMessage().getContent(), needle);
+        return false;
+    }
+
+    private static boolean contains(String value, String needle) {
+        return value != null && value.toLowerCase().contains(needle);
+    }
+
+    private static String cacheKey(String query, String userId) {
+        return userId + "|" + query.toLowerCase();
+    }
+}
@@ -1,28 +1,59 @@
 package com.telegramapp.service;
 
-import com.telegramapp.dao.TypingDAO;
-import com.telegramapp.dao.impl.TypingDAOImpl;
+import com.telegramapp.realtime.NotifyPayload;
 
-import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Typing indicators of one chat, kept entirely out of the database's tables: a typing user sends
+ * their id as a NOTIFY on the chat's typing channel at most once per SIGNAL_INTERVAL_MS, and
+ * watchers remember each sender until TYPING_TTL_MS after the last signal.
+ */
 public class TypingService {
-    private final TypingDAO typingDAO;
+    private static final long SIGNAL_INTERVAL_MS = 3000;
+    // A bit longer than the interval, so a user who keeps typing does not flicker.
+    private static final long TYPING_TTL_MS = 5000;
 
-    public TypingService() throws SQLException {
-        this.typingDAO = new TypingDAOImpl();
+    private final Map<String, Long> lastSignalAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> typingUntil = new ConcurrentHashMap<>();
+
+    /**
+     * Called on every keystroke; only every few seconds does it actually send a signal.
+     */
+    public void signalTyping(String receiverType, String receiverId, String userId) {
+        String channel = NotifyPayload.typingChannelFor(receiverType, receiverId);
+        long now = System.currentTimeMillis();
+        Long last = lastSignalAt.get(channel);
+        if (last != null && now - last < SIGNAL_INTERVAL_MS) return;
+        lastSignalAt.put(channel, now);
+        RealtimeService.getInstance().publish(channel, userId);
     }
 
-    public void updateTypingStatus(String chatId, String userId) {
-        try {
-            typingDAO.setTyping(chatId, userId);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Starts collecting who is typing in the chat; onStart runs when someone starts typing.
+     *
+     * @return an action that stops watching again
+     */
+    public Runnable watch(String receiverType, String receiverId, String currentUserId, Runnable onStart) {
+        boolean direct = "USER".equalsIgnoreCase(receiverType);
+        // Signals for a direct chat arrive on our own channel, from anyone we have a chat with.
+        String channel = direct ? NotifyPayload.typingChannelFor("USER", currentUserId) : NotifyPayload.typingChannelFor(receiverType, receiverId);
+        return RealtimeService.getInstance().subscribeRaw(channel, userId -> {
+            if (userId.equals(currentUserId) || (direct && !userId.equals(receiverId))) return;
+            Long previous = typingUntil.put(userId, System.currentTimeMillis() + TYPING_TTL_MS);
+            if (previous == null || previous < System.currentTimeMillis()) onStart.run();
+        });
     }
 
-    public List<String> getTypingUsers(String chatId, String currentUserId, int secondsWindow) throws SQLException {
-        return typingDAO.getTypingUsers(chatId, currentUserId, secondsWindow);
+    /**
+     * Ids of the users whose last signal is recent enough.
+     */
+    public List<String> getTypingUsers() {
+        long now = System.currentTimeMillis();
+        typingUntil.values().removeIf(until -> until < now);
+        return new ArrayList<>(typingUntil.keySet());
     }
 }
-
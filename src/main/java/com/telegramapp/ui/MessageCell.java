@@ -1,41 +1,217 @@
 package com.telegramapp.ui;
 
 import com.telegramapp.model.Message;
-import javafx.scene.control.Button;
+import com.telegramapp.model.User;
+import com.telegramapp.util.FX;
+import com.telegramapp.util.ImageCache;
+import com.telegramapp.util.ImageStorage;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Cursor;
+import javafx.scene.Node;
+import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Circle;
+import javafx.scene.shape.SVGPath;
+import javafx.scene.text.Text;
 
-import java.io.File;
-import java.awt.Desktop;
-
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Chat bubble cell. The node tree is built once per cell and only rebound in {@link #updateItem},
+ * so scrolling through a long history recycles a handful of cells instead of rebuilding the
+ * scene graph for every row. Data lookups and actions are delegated to the {@link Host}.
+ */
 public class MessageCell extends ListCell<Message> {
+
+    /**
+     * What the cell needs from the chat it is shown in. All calls happen on the FX thread.
+     */
+    public interface Host {
+        String getCurrentUserId();
+        User resolveUser(String userId);
+        Message findMessage(String messageId); // Target of a reply, may be null
+        long getPeerReadSeq();
+        void openAttachment(Message message);
+        ContextMenu createContextMenu(Message message);
+    }
+
+    private static final String DEFAULT_AVATAR = "/assets/default_avatar.png";
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+    // Originals whose thumbnail is being rendered, or could not be.
+    private static final Set<String> thumbnailAttempts = ConcurrentHashMap.newKeySet();
+
+    private final Host host;
+
+    private final HBox row = new HBox(8);
+    private final ImageView avatar = new ImageView();
+    private final VBox bubble = new VBox(4);
+    private final VBox replySnippet = new VBox();
+    private final Label replyUserLabel = new Label();
+    private final Label replyContentLabel = new Label();
+    private final ImageView mediaView = new ImageView();
+    private final Text content = new Text();
+    private final Label meta = new Label();
+    private final HBox ticks = new HBox();
+    private final SVGPath singleTick = tick("M4 12.5l2.5 2.5 6-6");
+    private final SVGPath doubleTick = tick("M8 12.5l2.5 2.5 6-6");
+    private final Label editedLabel = new Label("(edited)");
+
+    public MessageCell(Host host, ListView<Message> listView) {
+        this.host = host;
+
+        avatar.setFitWidth(36);
+        avatar.setFitHeight(36);
+        avatar.setClip(new Circle(18, 18, 18));
+
+        replySnippet.setPadding(new Insets(4, 8, 4, 8));
+        replySnippet.getStyleClass().add("reply-snippet");
+        replyUserLabel.getStyleClass().add("reply-header-label");
+        replyContentLabel.getStyleClass().add("reply-content-label");
+        replySnippet.getChildren().addAll(replyUserLabel, replyContentLabel);
+
+        mediaView.setFitWidth(200);
+        mediaView.setPreserveRatio(true);
+        mediaView.setCursor(Cursor.HAND);
+        mediaView.setOnMouseClicked(event -> {
+            if (getItem() != null) host.openAttachment(getItem());
+        });
+
+        content.wrappingWidthProperty().bind(listView.widthProperty().subtract(180));
+        content.setOnMouseClicked(event -> {
+            if (getItem() != null && "FILE".equals(getItem().getMediaType())) host.openAttachment(getItem());
+        });
+
+        meta.getStyleClass().add("message-meta");
+        editedLabel.getStyleClass().add("message-meta");
+        ticks.setAlignment(Pos.CENTER_LEFT);
+        ticks.setSpacing(-7);
+        ticks.getChildren().addAll(singleTick, doubleTick, editedLabel);
+        HBox metaContainer = new HBox(5, meta, ticks);
+        metaContainer.setAlignment(Pos.CENTER_RIGHT);
+
+        bubble.setPadding(new Insets(8, 12, 8, 12));
+        bubble.getStyleClass().add("message-bubble");
+        bubble.getChildren().addAll(replySnippet, mediaView, content, metaContainer);
+
+        row.setPadding(new Insets(4, 12, 4, 12));
+        row.getChildren().addAll(avatar, bubble);
+
+        // Building a menu per row on every update was a large part of the scrolling cost,
+        // so it is only created when the user actually asks for it.
+        setOnContextMenuRequested(event -> {
+            if (getItem() == null) return;
+            ContextMenu menu = host.createContextMenu(getItem());
+            menu.show(this, event.getScreenX(), event.getScreenY());
+            event.consume();
+        });
+    }
+
     @Override
-    protected void updateItem(Message item, boolean empty) {
-        super.updateItem(item, empty);
-        if (empty || item == null) {
-            setText(null);
+    protected void updateItem(Message m, boolean empty) {
+        super.updateItem(m, empty);
+        if (empty || m == null) {
             setGraphic(null);
             return;
         }
-        HBox row = new HBox(8);
-        Label label = new Label(item.getContent() == null ? "" : item.getContent());
-        row.getChildren().add(label);
-
-        if (item.getMediaPath() != null && !item.getMediaPath().isEmpty()) {
-            Button open = new Button("Open");
-            open.setOnAction(ev -> {
-                try {
-                    File f = new File(item.getMediaPath());
-                    if (!f.exists()) f = new File(System.getProperty("user.dir"), item.getMediaPath());
-                    if (f.exists() && Desktop.isDesktopSupported()) Desktop.getDesktop().open(f);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            });
-            row.getChildren().add(open);
+
+        boolean mine = m.getSenderId() != null && m.getSenderId().equals(host.getCurrentUserId());
+        boolean deleted = "DELETED".equals(m.getReadStatus());
+        User sender = host.resolveUser(m.getSenderId());
+
+        row.setAlignment(mine ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+        bubble.getStyleClass().removeAll("mine", "other");
+        bubble.getStyleClass().add(mine ? "mine" : "other");
+
+        show(avatar, !mine);
+        if (!mine) ImageCache.load(avatar, sender != null ? sender.getProfilePicPath() : null, DEFAULT_AVATAR);
+
+        Message replied = m.getReplyToMessageId() == null ? null : host.findMessage(m.getReplyToMessageId());
+        show(replySnippet, replied != null);
+        if (replied != null) {
+            User repliedUser = host.resolveUser(replied.getSenderId());
+            replyUserLabel.setText(repliedUser != null ? repliedUser.getDisplayName() : "Unknown");
+            replyContentLabel.setText(replied.getContent());
+        }
+
+        boolean hasImage = "IMAGE".equals(m.getMediaType()) && m.getMediaPath() != null;
+        show(mediaView, hasImage);
+        if (hasImage) {
+            showThumbnail(m);
+        } else {
+            mediaView.setImage(null);
+        }
+
+        boolean hasText = m.getContent() != null && !m.getContent().isBlank();
+        show(content, hasText);
+        content.setText(hasText ? m.getContent() : "");
+        content.getStyleClass().setAll(deleted ? "deleted-message-text" : "message-text");
+        boolean hasFile = "FILE".equals(m.getMediaType()) && m.getMediaPath() != null;
+        content.setUnderline(hasFile);
+        content.setCursor(hasFile ? Cursor.HAND : Cursor.DEFAULT);
+
+        String senderName = mine ? "You" : (sender != null ? sender.getDisplayName() : "Unknown");
+        meta.setText(senderName + " • " + m.getTimestamp().format(TIME_FORMAT));
+
+        show(ticks, mine && !deleted);
+        if (mine && !deleted) {
+            boolean read = m.getSeq() > 0 && m.getSeq() <= host.getPeerReadSeq();
+            singleTick.setStroke(read ? Color.DODGERBLUE : Color.GRAY);
+            show(doubleTick, read);
+            show(editedLabel, "EDITED".equals(m.getReadStatus()));
         }
+
         setGraphic(row);
     }
+
+    /**
+     * Bubbles only ever show the downscaled rendition; the original is opened on click.
+     * Attachments saved before thumbnails existed get theirs rendered in the background once the
+     * thumbnail turns out to be missing.
+     */
+    private void showThumbnail(Message m) {
+        String thumb = ImageStorage.thumbnailPath(m.getMediaPath(), ImageStorage.CHAT_THUMB_WIDTH).toString();
+        ImageCache.load(mediaView, thumb, null, () -> renderThumbnail(m, thumb));
+    }
+
+    private void renderThumbnail(Message m, String thumb) {
+        // Once per original: not again while it is being rendered, nor after it could not be.
+        if (!thumbnailAttempts.add(m.getMediaPath())) return;
+        FX.runAsync(() -> {
+            try {
+                return ImageStorage.ensureThumbnail(m.getMediaPath(), ImageStorage.CHAT_THUMB_WIDTH);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, path -> {
+            thumbnailAttempts.remove(m.getMediaPath());
+            // The missing file was cached as a failed decode.
+            ImageCache.evict(thumb);
+            if (m.equals(getItem())) ImageCache.load(mediaView, path, null);
+        }, error -> System.err.println("Could not render thumbnail for " + m.getMediaPath() + ": " + error.getMessage()));
+    }
+
+    private static SVGPath tick(String path) {
+        SVGPath tick = new SVGPath();
+        tick.setContent(path);
+        tick.setStroke(Color.DODGERBLUE);
+        tick.setStrokeWidth(1.5);
+        tick.setFill(Color.TRANSPARENT);
+        return tick;
+    }
+
+    private static void show(Node node, boolean visible) {
+        node.setVisible(visible);
+        node.setManaged(visible);
+    }
 }
@@ -0,0 +1,32 @@
+package com.telegramapp.ui;
+
+import com.telegramapp.model.MessageSearchHit;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+/**
+ * Renders a search snippet, showing the words the database marked as matches in bold.
+ */
+public final class SnippetText {
+    private SnippetText() { }
+
+    public static TextFlow render(String snippet) {
+        TextFlow flow = new TextFlow();
+        if (snippet == null) return flow;
+        boolean highlighted = false;
+        int start = 0;
+        for (int i = 0; i <= snippet.length(); i++) {
+            char c = i < snippet.length() ? snippet.charAt(i) : MessageSearchHit.HIGHLIGHT_START;
+            if (c != MessageSearchHit.HIGHLIGHT_START && c != MessageSearchHit.HIGHLIGHT_END) continue;
+            if (i > start) {
+                Text run = new Text(snippet.substring(start, i));
+                run.getStyleClass().add("message-text");
+                if (highlighted) run.setStyle("-fx-font-weight: bold;"); // Inline, so the stylesheet cannot override it
+                flow.getChildren().add(run);
+            }
+            highlighted = c == MessageSearchHit.HIGHLIGHT_START;
+            start = i + 1;
+        }
+        return flow;
+    }
+}
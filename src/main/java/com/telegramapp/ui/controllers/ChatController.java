@@ -1,59 +1,70 @@
 package com.telegramapp.ui.controllers;
 
+import com.telegramapp.dao.ChatDAO;
 import com.telegramapp.dao.impl.ChannelDAOImpl;
 import com.telegramapp.dao.impl.GroupDAOImpl;
 import com.telegramapp.dao.impl.UserDAOImpl;
 import com.telegramapp.model.Channel;
 import com.telegramapp.model.Group;
 import com.telegramapp.model.Message;
+import com.telegramapp.model.MessageSearchHit;
 import com.telegramapp.model.User;
+import com.telegramapp.realtime.NotificationCoalescer;
+import com.telegramapp.realtime.NotifyPayload;
 import com.telegramapp.service.MessageService;
+import com.telegramapp.service.RealtimeService;
 import com.telegramapp.service.TypingService;
+import com.telegramapp.ui.MessageCell;
+import com.telegramapp.ui.SnippetText;
+import com.telegramapp.util.ConversationCache;
 import com.telegramapp.util.FX;
+import com.telegramapp.util.ImageCache;
 import com.telegramapp.util.ImageStorage;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Insets;
-import javafx.geometry.Pos;
+import javafx.geometry.Orientation;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
-import javafx.scene.layout.Region;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
-import javafx.scene.paint.Color;
-import javafx.scene.shape.Circle;
-import javafx.scene.shape.SVGPath;
-import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
-import javafx.scene.Cursor;
 import java.awt.Desktop;
 
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-public class ChatController {
+public class ChatController implements MessageCell.Host {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int SEARCH_PAGE_SIZE = 30;
+    // Jumping to a search hit loads all history in between; beyond this the jump is refused.
+    private static final int MAX_REVEAL_DISTANCE = 5000;
+    private static final DateTimeFormatter SEARCH_DATE_FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy, HH:mm");
 
     @FXML private ListView<Message> messagesList;
     @FXML private TextField messageField;
@@ -68,6 +79,13 @@ public class ChatController {
     @FXML private HBox replyPreviewBox;
     @FXML private Label replyPreviewHeader;
     @FXML private Label replyPreviewContent;
+    @FXML private HBox uploadProgressBox;
+    @FXML private Label uploadProgressLabel;
+    @FXML private ProgressBar uploadProgressBar;
+    @FXML private HBox messageSearchBox;
+    @FXML private TextField messageSearchField;
+    @FXML private Label messageSearchStatusLabel;
+    @FXML private ListView<MessageSearchHit> messageSearchResults;
 
     private MessageService messageService;
     private TypingService typingService;
@@ -77,9 +95,28 @@ public class ChatController {
     private Object chatEntity;
     private MainController mainController;
     private Message messageToReplyTo = null;
-
-    private volatile LocalDateTime lastLoaded = LocalDateTime.now().minusYears(1);
+    private volatile int lastReportedUploadPercent = -1;
+
+    // Sync cursor: highest seq fetched from the server. Local sends never move it, so a message
+    // committed just before ours is still picked up by the next fetch. -1 until the first page is in.
+    private volatile long lastSeq = -1;
+    // Change-feed cursor: highest message version fetched, so edits and deletes are picked up too.
+    private volatile long lastVersion = 0;
+    private ConversationCache localCache; // Recent messages on disk; holds everything up to lastSeq
+    // Read watermark of the other side; own messages with seq at or below it show the double tick.
+    private volatile long peerReadSeq = 0;
+    private boolean hasMoreHistory = true;
+    private boolean loadingOlder = false;
+    private String activeSearchQuery;
+    private int searchGeneration = 0;
+    private boolean searchLoading = false;
+    private boolean searchExhausted = false;
+    private Message pendingReveal; // Search hit to jump to once the first page is in
     private ScheduledExecutorService scheduler;
+    private Runnable realtimeSubscription;
+    private Runnable catchUpTracking;
+    private Runnable typingSubscription;
+    private final NotificationCoalescer notifications = new NotificationCoalescer(batch -> batch.values().forEach(this::onNotified));
     private final Map<String, User> userCache = new ConcurrentHashMap<>();
     private final Map<String, Message> messageCache = new ConcurrentHashMap<>();
 
@@ -89,32 +126,37 @@ public class ChatController {
 
     @FXML
     public void initialize() {
+        this.typingService = new TypingService();
         try {
             this.messageService = new MessageService();
-            this.typingService = new TypingService();
         } catch (SQLException e) {
             e.printStackTrace();
             FX.showError("Failed to initialize services.");
         }
         setupMessageListCellFactory();
+        setupHistoryPaging();
         setupTypingListener();
+        setupMessageSearch();
     }
 
     public void loadChatData(User currentUser, String receiverType, String receiverId) {
         this.currentUser = currentUser;
         this.receiverType = receiverType;
         this.receiverId = receiverId;
+        this.localCache = ConversationCache.forChat(currentUser.getId(), ChatDAO.conversationIdFor(receiverType, receiverId, currentUser.getId()));
 
         configureHeader();
         configureInputMode();
         loadInitialMessages();
         startPolling();
+        subscribeToRealtime();
     }
 
     private void setupTypingListener() {
         messageField.textProperty().addListener((obs, oldVal, newVal) -> {
-            if (typingService != null && !"CHANNEL".equals(receiverType)) {
-                typingService.updateTypingStatus(receiverId, currentUser.getId());
+            // Clearing the field after a send is not typing.
+            if (!"CHANNEL".equals(receiverType) && !newVal.isEmpty()) {
+                typingService.signalTyping(receiverType, receiverId, currentUser.getId());
             }
         });
     }
@@ -125,42 +167,153 @@ public class ChatController {
         }
         scheduler = Executors.newSingleThreadScheduledExecutor();
 
+        // Degraded mode only: while NOTIFY delivery is up, new messages are fetched on demand.
         scheduler.scheduleAtFixedRate(() -> {
-            try {
-                List<Message> newMsgs = messageService.loadNewSince(receiverType, receiverId, currentUser.getId(), lastLoaded);
-                if (!newMsgs.isEmpty()) {
-                    Platform.runLater(() -> {
-                        appendMessages(newMsgs);
-                        if (mainController != null) {
-                            mainController.loadAllChatLists();
-                        }
-                    });
-                    lastLoaded = newMsgs.get(newMsgs.size() - 1).getTimestamp();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
+            if (!RealtimeService.getInstance().isConnected()) {
+                fetchNewMessages();
             }
         }, 2, 2, TimeUnit.SECONDS);
 
         if (!"CHANNEL".equals(receiverType)) {
-            scheduler.scheduleAtFixedRate(this::updateTypingStatus, 0, 3, TimeUnit.SECONDS);
+            // In memory only: clears the indicator once a typist's signals stop.
+            scheduler.scheduleAtFixedRate(this::updateTypingStatus, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private void subscribeToRealtime() {
+        if (realtimeSubscription != null) realtimeSubscription.run();
+        RealtimeService realtime = RealtimeService.getInstance();
+        if ("USER".equalsIgnoreCase(receiverType)) {
+            // Direct messages are announced on the recipient's personal channel.
+            realtimeSubscription = realtime.subscribe(NotifyPayload.channelFor("USER", currentUser.getId()), payload -> {
+                if (receiverId.equals(payload.getSenderId())) notifications.offer(receiverId, payload);
+            });
+        } else {
+            realtimeSubscription = realtime.subscribe(NotifyPayload.channelFor(receiverType, receiverId), payload -> notifications.offer(receiverId, payload));
+        }
+        if (typingSubscription != null) typingSubscription.run();
+        typingSubscription = "CHANNEL".equals(receiverType) ? null
+                : typingService.watch(receiverType, receiverId, currentUser.getId(), this::updateTypingStatus);
+        if (catchUpTracking != null) catchUpTracking.run();
+        catchUpTracking = realtime.trackConversation(ChatDAO.conversationIdFor(receiverType, receiverId, currentUser.getId()),
+                () -> lastSeq < 0 ? -1 : lastVersion, this::applyMissedChanges);
+    }
+
+    private void applyMissedChanges(List<Message> changes) {
+        ScheduledExecutorService s = scheduler;
+        if (s == null) return;
+        try {
+            s.execute(() -> {
+                try {
+                    applyChanges(changes, messageService.getPeerReadSeq(receiverType, receiverId, currentUser.getId()));
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // Chat was closed meanwhile.
+        }
+    }
+
+    /**
+     * Applies the rows carried by a window's notifications when they are exactly the next changes of
+     * the chat. If a payload came without its row, or changes are missing in between (notifications
+     * can be handled out of order), the whole window is covered by one fetch of the feed instead.
+     */
+    private void onNotified(List<NotifyPayload> payloads) {
+        ScheduledExecutorService s = scheduler;
+        if (s == null) return;
+        try {
+            s.execute(() -> {
+                if (lastSeq < 0) return;
+                TreeMap<Long, Message> byVersion = new TreeMap<>();
+                long peerSeq = peerReadSeq;
+                for (NotifyPayload payload : payloads) {
+                    Message m = payload.getMessage();
+                    if (m == null) {
+                        fetchNewMessages();
+                        return;
+                    }
+                    if (m.getVersion() > lastVersion) byVersion.put(m.getVersion(), m);
+                    // Watermarks only grow, and the peer tick shows the highest one of the other members.
+                    if (!currentUser.getId().equals(payload.getSenderId())) peerSeq = Math.max(peerSeq, payload.getSenderReadSeq());
+                }
+                if (byVersion.isEmpty()) return;
+                if (byVersion.firstKey() != lastVersion + 1 || byVersion.lastKey() - byVersion.firstKey() + 1 != byVersion.size()) {
+                    fetchNewMessages();
+                    return;
+                }
+                applyChanges(new ArrayList<>(byVersion.values()), peerSeq);
+            });
+        } catch (RejectedExecutionException ignored) {
+            // Chat was closed while the notifications were in flight.
+        }
+    }
+
+    private void requestNewMessages() {
+        ScheduledExecutorService s = scheduler;
+        if (s == null) return;
+        try {
+            // Fetches run on the chat's own scheduler so they never overlap with each other or the fallback poll.
+            s.execute(this::fetchNewMessages);
+        } catch (RejectedExecutionException ignored) {
+            // Chat was closed while the notification was in flight.
+        }
+    }
+
+    private void fetchNewMessages() {
+        if (lastSeq < 0) return;
+        try {
+            List<Message> changes = messageService.loadChangesSince(receiverType, receiverId, currentUser.getId(), lastVersion);
+            applyChanges(changes, messageService.getPeerReadSeq(receiverType, receiverId, currentUser.getId()));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies a run of the change feed (in version order). Must run on the chat's scheduler.
+     */
+    private void applyChanges(List<Message> feed, long peerSeq) {
+        if (lastSeq < 0) return;
+        boolean ticksChanged = peerSeq != peerReadSeq;
+        peerReadSeq = peerSeq;
+        // A catch-up batch may have been overtaken by a fetch; what is at or below the cursor is already applied.
+        List<Message> changes = feed.stream().filter(m -> m.getVersion() > lastVersion).toList();
+        // A message sent and then edited within one batch is in it twice; only its latest state counts.
+        Map<String, Message> latest = new HashMap<>();
+        for (Message m : changes) {
+            latest.merge(m.getId(), m, (a, b) -> b.getVersion() > a.getVersion() ? b : a);
+        }
+        // Above the seq cursor are new messages; the rest are edits and deletes of ones already known.
+        List<Message> fresh = new ArrayList<>();
+        List<Message> changed = new ArrayList<>();
+        for (Message m : latest.values()) {
+            (m.getSeq() > lastSeq ? fresh : changed).add(m);
+        }
+        fresh.sort(Comparator.comparingLong(Message::getSeq));
+        if (!changes.isEmpty()) {
+            lastVersion = changes.get(changes.size() - 1).getVersion();
+            if (!fresh.isEmpty()) lastSeq = fresh.get(fresh.size() - 1).getSeq();
+            localCache.append(fresh, lastSeq);
+            changed.forEach(localCache::update);
+        }
+        if (!changes.isEmpty() || ticksChanged) {
+            Platform.runLater(() -> {
+                replaceMessages(changed);
+                appendMessages(fresh);
+                if (ticksChanged) messagesList.refresh();
+            });
         }
     }
 
     private void updateTypingStatus() {
-        if (typingService == null) return;
-        FX.runAsync(() -> {
-            try {
-                List<String> typingUserIds = typingService.getTypingUsers(receiverId, currentUser.getId(), 3);
-                return userCache.values().stream()
-                        .filter(u -> typingUserIds.contains(u.getId()))
-                        .map(User::getDisplayName)
-                        .collect(Collectors.toList());
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return Collections.<String>emptyList();
-            }
-        }, (List<String> typingUsers) -> {
+        List<String> typingUsers = new ArrayList<>();
+        for (String userId : typingService.getTypingUsers()) {
+            User user = chatEntity instanceof User peer && peer.getId().equals(userId) ? peer : userCache.get(userId);
+            if (user != null) typingUsers.add(user.getDisplayName());
+        }
+        Platform.runLater(() -> {
             if (chatEntity instanceof User) {
                 chatStatusLabel.setText(((User) chatEntity).getStatus());
             } else {
@@ -170,26 +323,189 @@ public class ChatController {
                 String typingText = String.join(", ", typingUsers) + (typingUsers.size() > 1 ? " are" : " is") + " typing...";
                 chatStatusLabel.setText(typingText);
             }
-        }, null);
+        });
     }
 
-    private void setupMessageListCellFactory() {
-        messagesList.setCellFactory(lv -> {
-            ListCell<Message> cell = new ListCell<>() {
-                @Override
-                protected void updateItem(Message m, boolean empty) {
-                    super.updateItem(m, empty);
-                    setGraphic(empty || m == null ? null : createMessageBubble(m));
-                    setContextMenu(empty || m == null ? null : createContextMenuForCell(this));
+    private void setupHistoryPaging() {
+        // The vertical scroll bar only exists once the skin is installed.
+        messagesList.skinProperty().addListener((obs, oldSkin, newSkin) -> {
+            for (Node node : messagesList.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                    bar.valueProperty().addListener((o, oldVal, newVal) -> {
+                        if (newVal.doubleValue() <= bar.getMin()) {
+                            loadOlderMessages();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void setupMessageSearch() {
+        messageSearchResults.setCellFactory(lv -> new ListCell<>() {
+            private final Label meta = new Label();
+            private final VBox box = new VBox(2, meta);
+
+            {
+                meta.getStyleClass().add("reply-header-label");
+            }
+
+            @Override
+            protected void updateItem(MessageSearchHit hit, boolean empty) {
+                super.updateItem(hit, empty);
+                if (empty || hit == null) {
+                    setGraphic(null);
+                    return;
+                }
+                User sender = resolveUser(hit.getMessage().getSenderId());
+                meta.setText((sender != null ? sender.getDisplayName() : "Unknown") + " • " + hit.getMessage().getTimestamp().format(SEARCH_DATE_FORMAT));
+                TextFlow snippet = SnippetText.render(hit.getSnippet());
+                snippet.prefWidthProperty().bind(lv.widthProperty().subtract(40));
+                box.getChildren().setAll(meta, snippet);
+                setGraphic(box);
+            }
+        });
+        messageSearchResults.setOnMouseClicked(event -> {
+            MessageSearchHit hit = messageSearchResults.getSelectionModel().getSelectedItem();
+            if (hit != null) {
+                closeSearchResults();
+                revealMessage(hit.getMessage());
+            }
+        });
+        // Next page when the user scrolls to the end of the results.
+        messageSearchResults.skinProperty().addListener((obs, oldSkin, newSkin) -> {
+            for (Node node : messageSearchResults.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                    bar.valueProperty().addListener((o, oldVal, newVal) -> {
+                        if (newVal.doubleValue() >= bar.getMax()) {
+                            loadMoreSearchResults();
+                        }
+                    });
                 }
-            };
-            return cell;
+            }
         });
     }
 
-    private ContextMenu createContextMenuForCell(ListCell<Message> cell) {
+    @FXML
+    private void onToggleMessageSearch() {
+        boolean show = !messageSearchBox.isVisible();
+        messageSearchBox.setVisible(show);
+        messageSearchBox.setManaged(show);
+        if (show) {
+            messageSearchField.requestFocus();
+        } else {
+            closeSearchResults();
+            messageSearchField.clear();
+            messageSearchStatusLabel.setText("");
+        }
+    }
+
+    @FXML
+    private void onSearchMessages() {
+        String query = messageSearchField.getText() == null ? "" : messageSearchField.getText().trim();
+        if (query.isEmpty()) {
+            closeSearchResults();
+            messageSearchStatusLabel.setText("");
+            return;
+        }
+        activeSearchQuery = query;
+        searchGeneration++;
+        searchLoading = false;
+        searchExhausted = false;
+        messageSearchResults.getItems().clear();
+        messageSearchResults.setVisible(true);
+        loadMoreSearchResults();
+    }
+
+    private void loadMoreSearchResults() {
+        if (searchLoading || searchExhausted || activeSearchQuery == null) return;
+        searchLoading = true;
+        int generation = searchGeneration;
+        String query = activeSearchQuery;
+        List<MessageSearchHit> shown = messageSearchResults.getItems();
+        MessageSearchHit cursor = shown.isEmpty() ? null : shown.get(shown.size() - 1);
+        messageSearchStatusLabel.setText("Searching...");
+        FX.runAsync(() -> {
+            try { return messageService.searchChat(receiverType, receiverId, currentUser.getId(), query, cursor, SEARCH_PAGE_SIZE);
+            } catch (SQLException e) { e.printStackTrace(); return Collections.<MessageSearchHit>emptyList(); }
+        }, page -> {
+            if (generation != searchGeneration) return; // Replaced by a newer search
+            searchLoading = false;
+            searchExhausted = page.size() < SEARCH_PAGE_SIZE;
+            messageSearchResults.getItems().addAll(page);
+            int count = messageSearchResults.getItems().size();
+            messageSearchStatusLabel.setText(count == 0 ? "No results" : count + (searchExhausted ? "" : "+") + " found");
+        }, error -> {
+            if (generation == searchGeneration) searchLoading = false;
+        });
+    }
+
+    private void closeSearchResults() {
+        activeSearchQuery = null;
+        searchGeneration++;
+        searchLoading = false;
+        messageSearchResults.setVisible(false);
+        messageSearchResults.getItems().clear();
+    }
+
+    /**
+     * Scrolls to the message and selects it, loading the history in between if it is older than
+     * what is shown. Used for search hits, including ones picked in the global search.
+     */
+    public void revealMessage(Message target) {
+        if (lastSeq < 0) {
+            pendingReveal = target; // First page still loading
+            return;
+        }
+        List<Message> items = messagesList.getItems();
+        int index = indexOfMessage(target.getId());
+        if (index >= 0) {
+            focusMessage(index);
+            return;
+        }
+        if (items.isEmpty() || loadingOlder) return;
+        Message oldest = items.get(0);
+        long distance = oldest.getSeq() - target.getSeq();
+        if (distance <= 0) return;
+        if (distance > MAX_REVEAL_DISTANCE) {
+            FX.showError("This message is too far back in the history to jump to.");
+            return;
+        }
+        // A little extra so the hit does not end up as the very first row.
+        int limit = (int) distance + 10;
+        loadingOlder = true;
+        FX.runAsync(() -> {
+            try { return messageService.loadPageBefore(receiverType, receiverId, currentUser.getId(), oldest, limit);
+            } catch (SQLException e) { e.printStackTrace(); return Collections.<Message>emptyList(); }
+        }, page -> {
+            hasMoreHistory = page.size() == limit;
+            prependMessages(page);
+            loadingOlder = false;
+            int loaded = indexOfMessage(target.getId());
+            if (loaded >= 0) focusMessage(loaded);
+        }, error -> loadingOlder = false);
+    }
+
+    private int indexOfMessage(String messageId) {
+        List<Message> items = messagesList.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId().equals(messageId)) return i;
+        }
+        return -1;
+    }
+
+    private void focusMessage(int index) {
+        messagesList.scrollTo(Math.max(0, index - 2));
+        messagesList.getSelectionModel().select(index);
+    }
+
+    private void setupMessageListCellFactory() {
+        messagesList.setCellFactory(lv -> new MessageCell(this, lv));
+    }
+
+    @Override
+    public ContextMenu createContextMenu(Message message) {
         ContextMenu contextMenu = new ContextMenu();
-        Message message = cell.getItem();
 
         MenuItem replyItem = new MenuItem("Reply");
         replyItem.setOnAction(event -> {
@@ -201,7 +517,7 @@ public class ChatController {
         });
         contextMenu.getItems().add(replyItem);
 
-        if (message != null && message.getSenderId().equals(currentUser.getId()) && !"DELETED".equals(message.getReadStatus())) {
+        if (currentUser.getId().equals(message.getSenderId()) && !"DELETED".equals(message.getReadStatus())) {
             MenuItem editItem = new MenuItem("Edit");
             editItem.setOnAction(event -> {
                 TextInputDialog dialog = new TextInputDialog(message.getContent());
@@ -216,7 +532,7 @@ public class ChatController {
                             try {
                                 messageService.editMessage(message);
                             } catch (SQLException e) { throw new RuntimeException(e); }
-                        }, this::loadInitialMessages, error -> FX.showError("Failed to edit message."));
+                        }, this::requestNewMessages, error -> FX.showError("Failed to edit message."));
                     }
                 });
             });
@@ -226,92 +542,13 @@ public class ChatController {
                 try {
                     messageService.deleteMessage(message.getId(), currentUser.getId());
                 } catch (SQLException e) { throw new RuntimeException(e); }
-            }, this::loadInitialMessages, error -> FX.showError("Failed to delete message.")));
+            }, this::requestNewMessages, error -> FX.showError("Failed to delete message.")));
 
             contextMenu.getItems().addAll(editItem, deleteItem);
         }
         return contextMenu;
     }
 
-    private Node createMessageBubble(Message m) {
-        boolean mine = m.getSenderId().equals(currentUser.getId());
-        VBox bubble = new VBox(4);
-        bubble.setPadding(new Insets(8, 12, 8, 12));
-        bubble.getStyleClass().addAll("message-bubble", mine ? "mine" : "other");
-
-        if (m.getReplyToMessageId() != null) {
-            Message repliedMsg = getMessageById(m.getReplyToMessageId());
-            if (repliedMsg != null) {
-                VBox replySnippet = new VBox();
-                replySnippet.setPadding(new Insets(4, 8, 4, 8));
-                replySnippet.getStyleClass().add("reply-snippet");
-                Label repliedUserLabel = new Label(resolveUser(repliedMsg.getSenderId()).getDisplayName());
-                repliedUserLabel.getStyleClass().add("reply-header-label");
-                Label repliedContentLabel = new Label(repliedMsg.getContent());
-                repliedContentLabel.getStyleClass().add("reply-content-label");
-                replySnippet.getChildren().addAll(repliedUserLabel, repliedContentLabel);
-                bubble.getChildren().add(replySnippet);
-            }
-        }
-
-        if ("IMAGE".equals(m.getMediaType()) && m.getMediaPath() != null) {
-            ImageView imageView = new ImageView();
-            imageView.setFitWidth(200);
-            imageView.setPreserveRatio(true);
-            try (FileInputStream fis = new FileInputStream(m.getMediaPath())) {
-                imageView.setImage(new Image(fis));
-            } catch (IOException e) { e.printStackTrace(); }
-
-            // FIX: Add click handler to open the image
-            imageView.setCursor(Cursor.HAND);
-            imageView.setOnMouseClicked(event -> {
-                try {
-                    File file = new File(m.getMediaPath());
-                    if (file.exists()) {
-                        Desktop.getDesktop().open(file);
-                    } else {
-                        FX.showError("Attachment not found at: " + m.getMediaPath());
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    FX.showError("Could not open the attachment.");
-                }
-            });
-
-            bubble.getChildren().add(imageView);
-        }
-
-        if (m.getContent() != null && !m.getContent().isBlank()) {
-            Text content = new Text(m.getContent());
-            content.getStyleClass().add("DELETED".equals(m.getReadStatus()) ? "deleted-message-text" : "message-text");
-            content.wrappingWidthProperty().bind(messagesList.widthProperty().subtract(180));
-            bubble.getChildren().add(content);
-        }
-
-        User sender = resolveUser(m.getSenderId());
-        String senderName = mine ? "You" : (sender != null ? sender.getDisplayName() : "Unknown");
-        Label meta = new Label(senderName + " • " + m.getTimestamp().format(DateTimeFormatter.ofPattern("HH:mm")));
-        meta.getStyleClass().add("message-meta");
-        HBox metaContainer = new HBox(5, meta);
-        metaContainer.setAlignment(Pos.CENTER_RIGHT);
-        if (mine && !"DELETED".equals(m.getReadStatus())) {
-            metaContainer.getChildren().add(createTickStatus(m));
-        }
-        bubble.getChildren().add(metaContainer);
-
-        HBox row = new HBox(8);
-        row.setAlignment(mine ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        row.setPadding(new Insets(4, 12, 4, 12));
-        ImageView avatar = new ImageView();
-        avatar.setFitWidth(36);
-        avatar.setFitHeight(36);
-        avatar.setClip(new Circle(18, 18, 18));
-        loadAvatar(sender, avatar);
-        if (!mine) row.getChildren().add(avatar);
-        row.getChildren().add(bubble);
-
-        return row;
-    }
 
     @FXML
     private void onSend() {
@@ -328,9 +565,8 @@ public class ChatController {
                 return m;
             } catch (SQLException e) { throw new RuntimeException(e); }
         }, sentMessage -> {
-            messagesList.getItems().add(sentMessage);
-            messagesList.scrollTo(messagesList.getItems().size() - 1);
-            lastLoaded = sentMessage.getTimestamp();
+            appendMessages(List.of(sentMessage));
+            if (mainController != null) mainController.showSentMessage(sentMessage);
             messageField.clear();
             onCancelReply();
         }, error -> FX.showError("Send failed: " + error.getMessage()));
@@ -339,30 +575,64 @@ public class ChatController {
     @FXML
     private void onAttach() {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select Image");
-        fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg"));
+        fileChooser.setTitle("Select File");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg"),
+                new FileChooser.ExtensionFilter("All Files", "*.*"));
         File selectedFile = fileChooser.showOpenDialog(messageField.getScene().getWindow());
 
         if (selectedFile != null) {
+            showUploadProgress(selectedFile.getName());
+            Message replyTarget = messageToReplyTo;
             FX.runAsync(() -> {
                 try {
-                    String mediaPath = ImageStorage.saveAttachment(selectedFile);
-                    Message m = new Message(currentUser.getId(), receiverId, receiverType, "", "IMAGE", mediaPath);
-                    if (messageToReplyTo != null) {
-                        m.setReplyToMessageId(messageToReplyTo.getId());
+                    String mediaPath = ImageStorage.saveAttachment(selectedFile, this::reportUploadProgress);
+                    String name = selectedFile.getName();
+                    boolean image = ImageStorage.isImage(name.substring(Math.max(0, name.lastIndexOf('.'))));
+                    Message m = image
+                            ? new Message(currentUser.getId(), receiverId, receiverType, "", "IMAGE", mediaPath)
+                            : new Message(currentUser.getId(), receiverId, receiverType, name, "FILE", mediaPath);
+                    if (replyTarget != null) {
+                        m.setReplyToMessageId(replyTarget.getId());
                     }
                     messageService.sendMessage(m);
                     return m;
                 } catch (IOException | SQLException e) { throw new RuntimeException(e); }
             }, sentMessage -> {
-                messagesList.getItems().add(sentMessage);
-                messagesList.scrollTo(messagesList.getItems().size() - 1);
-                lastLoaded = sentMessage.getTimestamp();
+                hideUploadProgress();
+                appendMessages(List.of(sentMessage));
+                if (mainController != null) mainController.showSentMessage(sentMessage);
                 onCancelReply();
-            }, error -> FX.showError("Could not send image: " + error.getMessage()));
+            }, error -> {
+                hideUploadProgress();
+                FX.showError("Could not send file: " + error.getMessage());
+            });
         }
     }
 
+    private void showUploadProgress(String fileName) {
+        lastReportedUploadPercent = -1;
+        uploadProgressLabel.setText("Uploading " + fileName);
+        uploadProgressBar.setProgress(0);
+        uploadProgressBox.setVisible(true);
+        uploadProgressBox.setManaged(true);
+    }
+
+    private void hideUploadProgress() {
+        uploadProgressBox.setVisible(false);
+        uploadProgressBox.setManaged(false);
+    }
+
+    /**
+     * Called from the ingest thread for every chunk; only whole-percent changes reach the FX thread.
+     */
+    private void reportUploadProgress(long done, long total) {
+        int percent = total == 0 ? 100 : (int) (done * 100 / total);
+        if (percent == lastReportedUploadPercent) return;
+        lastReportedUploadPercent = percent;
+        Platform.runLater(() -> uploadProgressBar.setProgress(percent / 100.0));
+    }
+
     @FXML
     private void onCancelReply() {
         messageToReplyTo = null;
@@ -477,18 +747,88 @@ public class ChatController {
     }
 
     private void loadInitialMessages() {
+        ConversationCache cache = localCache;
+        // Disk first: if the chat was open before, its recent messages are shown before the database is asked.
+        FX.runAsync(() -> freshSnapshot(cache), snapshot -> {
+            if (snapshot.cursor() < 0) {
+                loadLatestPage(cache);
+                return;
+            }
+            List<Message> cached = snapshot.messages();
+            populateMessages(cached);
+            hasMoreHistory = !cached.isEmpty() && cached.get(0).getSeq() > 1;
+            lastSeq = snapshot.cursor();
+            lastVersion = maxVersion(cached);
+            // Only the delta since the cursor comes from the server (with the peer's read watermark).
+            onFirstPageShown();
+        }, null);
+    }
+
+    /**
+     * The cached snapshot, or an empty one if the chat moved on by more than a page since: the delta
+     * would be fetched and shown in full only for the cache to keep its newest part.
+     */
+    private ConversationCache.Snapshot freshSnapshot(ConversationCache cache) {
+        ConversationCache.Snapshot snapshot = cache.load();
+        if (snapshot.cursor() < 0) return snapshot;
+        try {
+            long head = messageService.getHeadSeq(receiverType, receiverId, currentUser.getId());
+            if (head - snapshot.cursor() > PAGE_SIZE) return new ConversationCache.Snapshot(List.of(), -1);
+        } catch (SQLException e) {
+            // Go with the cache; the delta fetch reports its own errors.
+            e.printStackTrace();
+        }
+        return snapshot;
+    }
+
+    private void loadLatestPage(ConversationCache cache) {
         FX.runAsync(() -> {
-            try { return messageService.loadConversation(receiverType, receiverId, currentUser.getId());
+            try {
+                List<Message> page = messageService.loadLatestPage(receiverType, receiverId, currentUser.getId(), PAGE_SIZE);
+                peerReadSeq = messageService.getPeerReadSeq(receiverType, receiverId, currentUser.getId());
+                // Replaces a stale cache; anything older than the page would leave a hole below it.
+                cache.replace(page, page.isEmpty() ? 0 : page.get(page.size() - 1).getSeq());
+                return page;
             } catch (SQLException e) { e.printStackTrace(); return Collections.<Message>emptyList(); }
-        }, all -> {
-            populateMessages(all);
-            if (!all.isEmpty()) {
-                lastLoaded = all.get(all.size() - 1).getTimestamp();
-            }
-            markMessagesAsRead();
+        }, page -> {
+            populateMessages(page);
+            hasMoreHistory = page.size() == PAGE_SIZE;
+            lastSeq = page.isEmpty() ? 0 : page.get(page.size() - 1).getSeq();
+            // Changes to other rows after this version are fetched again and ignored, which is harmless.
+            lastVersion = maxVersion(page);
+            // Catch anything notified while the first page was in flight.
+            onFirstPageShown();
         }, null);
     }
 
+    private static long maxVersion(List<Message> messages) {
+        return messages.stream().mapToLong(Message::getVersion).max().orElse(0);
+    }
+
+    private void onFirstPageShown() {
+        requestNewMessages();
+        markMessagesAsRead();
+        if (pendingReveal != null) {
+            Message target = pendingReveal;
+            pendingReveal = null;
+            revealMessage(target);
+        }
+    }
+
+    private void loadOlderMessages() {
+        if (loadingOlder || !hasMoreHistory || messagesList.getItems().isEmpty()) return;
+        loadingOlder = true;
+        Message oldest = messagesList.getItems().get(0);
+        FX.runAsync(() -> {
+            try { return messageService.loadPageBefore(receiverType, receiverId, currentUser.getId(), oldest, PAGE_SIZE);
+            } catch (SQLException e) { e.printStackTrace(); return Collections.<Message>emptyList(); }
+        }, page -> {
+            hasMoreHistory = page.size() == PAGE_SIZE;
+            prependMessages(page);
+            loadingOlder = false;
+        }, error -> loadingOlder = false);
+    }
+
     private void markMessagesAsRead() {
         FX.runAsync(() -> {
             try { messageService.markMessagesAsRead(receiverType, receiverId, currentUser.getId());
@@ -498,35 +838,19 @@ public class ChatController {
         }, Throwable::printStackTrace);
     }
 
-    private HBox createTickStatus(Message m) {
-        HBox tickContainer = new HBox();
-        tickContainer.setAlignment(Pos.CENTER_LEFT);
-        tickContainer.setSpacing(-7);
-        SVGPath singleTick = new SVGPath();
-        singleTick.setContent("M4 12.5l2.5 2.5 6-6");
-        singleTick.setStrokeWidth(1.5);
-        singleTick.setFill(Color.TRANSPARENT);
-        if ("READ".equals(m.getReadStatus())) {
-            singleTick.setStroke(Color.DODGERBLUE);
-            SVGPath doubleTick = new SVGPath();
-            doubleTick.setContent("M8 12.5l2.5 2.5 6-6");
-            doubleTick.setStroke(Color.DODGERBLUE);
-            doubleTick.setStrokeWidth(1.5);
-            doubleTick.setFill(Color.TRANSPARENT);
-            tickContainer.getChildren().addAll(singleTick, doubleTick);
-        } else {
-            singleTick.setStroke(Color.GRAY);
-            tickContainer.getChildren().add(singleTick);
-        }
-        if ("EDITED".equals(m.getReadStatus())) {
-            Label editedLabel = new Label("(edited)");
-            editedLabel.getStyleClass().add("message-meta");
-            tickContainer.getChildren().add(editedLabel);
-        }
-        return tickContainer;
+
+    @Override
+    public String getCurrentUserId() {
+        return currentUser.getId();
+    }
+
+    @Override
+    public long getPeerReadSeq() {
+        return peerReadSeq;
     }
 
-    private User resolveUser(String userId) {
+    @Override
+    public User resolveUser(String userId) {
         if (userId == null) return null;
         return userCache.computeIfAbsent(userId, id -> {
             try { return new UserDAOImpl().findById(id).orElse(null);
@@ -534,7 +858,8 @@ public class ChatController {
         });
     }
 
-    private Message getMessageById(String messageId) {
+    @Override
+    public Message findMessage(String messageId) {
         if (messageId == null) return null;
         return messageCache.computeIfAbsent(messageId, id -> {
             try { return messageService.getMessageById(id).orElse(null);
@@ -544,21 +869,22 @@ public class ChatController {
 
     private void loadAvatar(User user, ImageView imageView) {
         if (user == null || imageView == null) return;
-        String picPath = user.getProfilePicPath();
-        Image avatarImage = null;
-        if (picPath != null && !picPath.isBlank()) {
-            try (FileInputStream fis = new FileInputStream(new File(picPath))) {
-                avatarImage = new Image(fis);
-            } catch (Exception e) { /* fallback */ }
-        }
-        if (avatarImage == null) {
-            try (InputStream defaultAvatarStream = getClass().getResourceAsStream("/assets/default_avatar.png")) {
-                if (defaultAvatarStream != null) {
-                    avatarImage = new Image(defaultAvatarStream);
-                }
-            } catch (Exception e) { e.printStackTrace(); }
+        ImageCache.load(imageView, user.getProfilePicPath(), "/assets/default_avatar.png");
+    }
+
+    @Override
+    public void openAttachment(Message m) {
+        try {
+            File file = new File(m.getMediaPath());
+            if (file.exists()) {
+                Desktop.getDesktop().open(file);
+            } else {
+                FX.showError("Attachment not found at: " + m.getMediaPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            FX.showError("Could not open the attachment.");
         }
-        imageView.setImage(avatarImage);
     }
 
     private void populateMessages(List<Message> list) {
@@ -567,13 +893,55 @@ public class ChatController {
         if (!list.isEmpty()) messagesList.scrollTo(list.size() - 1);
     }
 
-    private void appendMessages(List<Message> list) {
+    private void prependMessages(List<Message> list) {
+        if (list.isEmpty()) return;
         list.forEach(m -> messageCache.put(m.getId(), m));
-        messagesList.getItems().addAll(list);
+        messagesList.getItems().addAll(0, list);
+        // Keep the message the user was looking at in place instead of jumping to the top.
+        messagesList.scrollTo(list.size());
+    }
+
+    /**
+     * Swaps in the new state of messages that are on screen; others are not loaded and need nothing.
+     */
+    private void replaceMessages(List<Message> changed) {
+        if (changed.isEmpty()) return;
+        List<Message> items = messagesList.getItems();
+        Map<String, Integer> indexById = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            indexById.put(items.get(i).getId(), i);
+        }
+        for (Message m : changed) {
+            // Reply previews look messages up here, including ones that are scrolled out of the list.
+            messageCache.computeIfPresent(m.getId(), (id, old) -> m);
+            Integer index = indexById.get(m.getId());
+            if (index != null) items.set(index, m);
+        }
+    }
+
+    private void appendMessages(List<Message> list) {
+        // A notification can race the local echo of our own send, so skip rows already shown.
+        Set<String> shown = messagesList.getItems().stream().map(Message::getId).collect(Collectors.toSet());
+        List<Message> fresh = list.stream().filter(m -> !shown.contains(m.getId())).collect(Collectors.toList());
+        if (fresh.isEmpty()) return;
+        fresh.forEach(m -> messageCache.put(m.getId(), m));
+        messagesList.getItems().addAll(fresh);
         messagesList.scrollTo(messagesList.getItems().size() - 1);
     }
 
     public void onClose() {
+        if (realtimeSubscription != null) {
+            realtimeSubscription.run();
+            realtimeSubscription = null;
+        }
+        if (catchUpTracking != null) {
+            catchUpTracking.run();
+            catchUpTracking = null;
+        }
+        if (typingSubscription != null) {
+            typingSubscription.run();
+            typingSubscription = null;
+        }
         if (scheduler != null) scheduler.shutdownNow();
     }
 }
@@ -3,12 +3,22 @@ package com.telegramapp.ui.controllers;
 import com.telegramapp.dao.impl.ChannelDAOImpl;
 import com.telegramapp.dao.impl.GroupDAOImpl;
 import com.telegramapp.dao.impl.MessageDAOImpl;
+import com.telegramapp.dao.impl.MessagePartitionDAOImpl;
 import com.telegramapp.dao.impl.UserDAOImpl;
 import com.telegramapp.model.*;
-import com.telegramapp.service.ContactService;
+import com.telegramapp.realtime.NotificationCoalescer;
+import com.telegramapp.realtime.NotifyPayload;
+import com.telegramapp.service.AttachmentGarbageCollector;
+import com.telegramapp.service.MessageArchiver;
+import com.telegramapp.service.RealtimeService;
+import com.telegramapp.service.SearchService;
+import com.telegramapp.util.Config;
 import com.telegramapp.util.FX;
+import com.telegramapp.ui.SnippetText;
+import com.telegramapp.util.ImageCache;
 import javafx.animation.FadeTransition;
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Insets;
@@ -24,27 +34,30 @@ import javafx.scene.layout.Region;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.shape.Circle;
+import javafx.scene.text.TextFlow;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class MainController {
+    private static final DateTimeFormatter SEARCH_DATE_FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy");
+    private static final Comparator<ChatListItem> CHAT_LIST_ORDER = Comparator.comparing(ChatListItem::getLastMessageTimestamp).reversed();
 
     // --- FXML UI Elements ---
     @FXML private VBox mainContainer;
@@ -71,13 +84,17 @@ public class MainController {
     private GroupDAOImpl groupDAO;
     private ChannelDAOImpl channelDAO;
     private MessageDAOImpl messageDAO;
-    private ContactService contactService;
+    private SearchService searchService;
 
     // --- State Variables ---
     private User currentUser;
     private ChatController activeChatController;
     private boolean isDarkMode = false;
     private ScheduledExecutorService scheduler;
+    private final Map<String, Runnable> realtimeSubscriptions = new HashMap<>();
+    private Runnable resyncSubscription;
+    private final NotificationCoalescer chatListNotifications =
+            new NotificationCoalescer(batch -> Platform.runLater(() -> applyChatListUpdates(batch)));
     private Image lightLogo;
     private Image darkLogo;
 
@@ -88,13 +105,7 @@ public class MainController {
         this.groupDAO = new GroupDAOImpl();
         this.channelDAO = new ChannelDAOImpl();
         this.messageDAO = new MessageDAOImpl();
-
-        try {
-            this.contactService = new ContactService();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            FX.showError("Failed to initialize contact service.");
-        }
+        this.searchService = new SearchService(this::showSearchResults);
 
         lightLogo = new Image(getClass().getResourceAsStream("/assets/telegram_logo.png"));
         darkLogo = new Image(getClass().getResourceAsStream("/assets/telegram_logo_dark.png"));
@@ -113,10 +124,11 @@ public class MainController {
 
         globalSearchField.textProperty().addListener((obs, oldVal, newVal) -> {
             if (newVal == null || newVal.trim().isEmpty()) {
+                searchService.cancel();
                 searchResultsListView.setVisible(false);
                 searchResultsContainer.setVisible(false);
-            } else {
-                performSearch(newVal.trim());
+            } else if (currentUser != null) {
+                searchService.search(newVal.trim(), currentUser.getId());
             }
         });
 
@@ -134,7 +146,16 @@ public class MainController {
                         setText(group.getName() + " (Group)");
                     } else if (item instanceof Channel channel) {
                         setText(channel.getName() + " (Channel)");
+                    } else if (item instanceof MessageSearchHit hit) {
+                        setText(null);
+                        Label when = new Label("Message • " + hit.getMessage().getTimestamp().format(SEARCH_DATE_FORMAT));
+                        when.getStyleClass().add("reply-header-label");
+                        TextFlow snippet = SnippetText.render(hit.getSnippet());
+                        snippet.prefWidthProperty().bind(lv.widthProperty().subtract(30));
+                        setGraphic(new VBox(2, when, snippet));
+                        return;
                     }
+                    setGraphic(null);
                 }
             }
         });
@@ -148,6 +169,8 @@ public class MainController {
                     openChatView("GROUP", group.getId());
                 } else if (selected instanceof Channel channel) {
                     openChatView("CHANNEL", channel.getId());
+                } else if (selected instanceof MessageSearchHit hit) {
+                    openMessage(hit.getMessage());
                 }
                 globalSearchField.clear();
                 searchResultsContainer.setVisible(false);
@@ -155,43 +178,170 @@ public class MainController {
         });
     }
 
-    private void performSearch(String query) {
-        FX.runAsync(() -> {
-            try {
-                List<User> users = userDAO.searchUsersForContacts(query, currentUser.getId());
-                List<Group> groups = groupDAO.searchGroups(query);
-                List<Channel> channels = channelDAO.searchChannels(query);
-                List<Object> results = new java.util.ArrayList<>();
-                results.addAll(users);
-                results.addAll(groups);
-                results.addAll(channels);
-                return results;
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return Collections.emptyList();
-            }
-        }, results -> {
-            searchResultsListView.getItems().setAll(results);
-            searchResultsListView.setVisible(!results.isEmpty());
-            searchResultsContainer.setVisible(!results.isEmpty());
-        }, null);
+    private void showSearchResults(List<Object> results) {
+        if (globalSearchField.getText() == null || globalSearchField.getText().isBlank()) return;
+        searchResultsListView.getItems().setAll(results);
+        searchResultsListView.setVisible(!results.isEmpty());
+        searchResultsContainer.setVisible(!results.isEmpty());
     }
-
     public void setCurrentUser(User u) {
         this.currentUser = u;
         if (this.currentUser != null) {
+            RealtimeService realtime = RealtimeService.getInstance();
+            // Chat list updates announced while the connection was down are lost; reload it on reconnect.
+            if (resyncSubscription != null) resyncSubscription.run();
+            resyncSubscription = realtime.onResync(this::loadAllChatLists);
+            realtime.start();
             refreshProfileView();
             loadAllChatLists();
             startPollingForChatListUpdates();
+            collectAttachmentGarbage();
+            ensureMessagePartitions();
+            archiveOldMessages();
         }
     }
 
+    private void collectAttachmentGarbage() {
+        FX.runAsync(() -> {
+            try {
+                return new AttachmentGarbageCollector().collect();
+            } catch (IOException | SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, removed -> {
+            if (removed > 0) System.out.println("Removed " + removed + " unreferenced attachments");
+        }, error -> System.err.println("Attachment cleanup failed: " + error.getMessage()));
+    }
+
+    private void ensureMessagePartitions() {
+        FX.runAsync(() -> {
+            try {
+                return new MessagePartitionDAOImpl().ensurePartitions(3);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, created -> {
+            if (created > 0) System.out.println("Created " + created + " message partitions");
+        }, error -> System.err.println("Partition maintenance failed: " + error.getMessage()));
+    }
+
+    /**
+     * Opt-in (archive.enabled): only one client should archive, and only one that shares the archive
+     * directory with everybody reading old history.
+     */
+    private void archiveOldMessages() {
+        if (!Boolean.parseBoolean(Config.get("archive.enabled", "false"))) return;
+        FX.runAsync(() -> {
+            try {
+                return new MessageArchiver().archive();
+            } catch (IOException | SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, archived -> {
+            if (archived > 0) System.out.println("Archived " + archived + " months of messages");
+        }, error -> System.err.println("Message archiving failed: " + error.getMessage()));
+    }
+
     private void startPollingForChatListUpdates() {
         if (scheduler != null) {
             scheduler.shutdownNow();
         }
         scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(this::loadAllChatLists, 5, 5, TimeUnit.SECONDS);
+        // Fallback only; with realtime up the list refreshes when one of its chats is notified.
+        scheduler.scheduleAtFixedRate(() -> {
+            if (!RealtimeService.getInstance().isConnected()) {
+                loadAllChatLists();
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Keeps exactly one subscription per chat in the sidebar plus the user's own DM channel.
+     * Must be called on the FX thread.
+     */
+    private void syncRealtimeSubscriptions(List<List<ChatListItem>> lists) {
+        Set<String> wanted = new HashSet<>();
+        wanted.add(NotifyPayload.channelFor("USER", currentUser.getId()));
+        for (ChatListItem item : lists.get(1)) {
+            wanted.add(NotifyPayload.channelFor("GROUP", ((Group) item.getChatObject()).getId()));
+        }
+        for (ChatListItem item : lists.get(2)) {
+            wanted.add(NotifyPayload.channelFor("CHANNEL", ((Channel) item.getChatObject()).getId()));
+        }
+
+        realtimeSubscriptions.entrySet().removeIf(entry -> {
+            if (wanted.contains(entry.getKey())) return false;
+            entry.getValue().run();
+            return true;
+        });
+        RealtimeService realtime = RealtimeService.getInstance();
+        for (String channel : wanted) {
+            realtimeSubscriptions.computeIfAbsent(channel, ch -> realtime.subscribe(ch, payload -> chatListNotifications.offer(ch, payload)));
+        }
+    }
+
+    /**
+     * Folds a window of notifications into the entries they concern. Only a payload without its
+     * row, or for a chat that is not listed yet, costs a reload of the whole list.
+     */
+    private void applyChatListUpdates(Map<String, List<NotifyPayload>> batch) {
+        if (currentUser == null) return;
+        List<Map.Entry<ChatListItem, Message>> updates = new ArrayList<>();
+        for (List<NotifyPayload> payloads : batch.values()) {
+            for (NotifyPayload payload : payloads) {
+                ChatListItem item = payload.getMessage() == null ? null : findChatListItem(payload);
+                if (item == null) {
+                    loadAllChatLists();
+                    return;
+                }
+                updates.add(Map.entry(item, payload.getMessage()));
+            }
+        }
+        updates.forEach(update -> update.getKey().apply(update.getValue(), currentUser.getId()));
+        resortChatLists();
+    }
+
+    /**
+     * Shows a message the user just sent in the sidebar. Direct messages are only announced to the
+     * recipient, so no notification does this for us. Must be called on the FX thread.
+     */
+    public void showSentMessage(Message message) {
+        if (currentUser == null) return;
+        ChatListItem item = findChatListItem(message.getReceiverType().toUpperCase(), message.getReceiverId());
+        if (item == null) {
+            // First message to this contact: the chat is not listed yet.
+            loadAllChatLists();
+            return;
+        }
+        item.apply(message, currentUser.getId());
+        resortChatLists();
+    }
+
+    private void resortChatLists() {
+        for (ListView<ChatListItem> list : List.of(usersListView, groupsListView, channelsListView)) {
+            FXCollections.sort(list.getItems(), CHAT_LIST_ORDER);
+            list.refresh();
+        }
+    }
+
+    private ChatListItem findChatListItem(NotifyPayload payload) {
+        // Direct messages arrive on our own channel; the chat is the sender's.
+        String type = payload.getChatType().toUpperCase();
+        return findChatListItem(type, "USER".equals(type) ? payload.getSenderId() : payload.getChatId());
+    }
+
+    private ChatListItem findChatListItem(String type, String chatId) {
+        ListView<ChatListItem> list = switch (type) {
+            case "USER" -> usersListView;
+            case "GROUP" -> groupsListView;
+            default -> channelsListView;
+        };
+        for (ChatListItem item : list.getItems()) {
+            Object chat = item.getChatObject();
+            String id = chat instanceof User u ? u.getId() : chat instanceof Group g ? g.getId() : ((Channel) chat).getId();
+            if (id.equals(chatId)) return item;
+        }
+        return null;
     }
 
     private void toggleTheme() {
@@ -225,7 +375,6 @@ public class MainController {
     private void loadChatAvatar(Object chatObject, ImageView imageView) {
         if (imageView == null) return;
 
-        Image avatarImage = null;
         String picPath = null;
         String defaultAvatarResource = "/assets/default_avatar.png";
 
@@ -237,26 +386,7 @@ public class MainController {
             defaultAvatarResource = "/assets/default_channel_avatar.png";
         }
 
-        if (picPath != null && !picPath.isBlank()) {
-            try (FileInputStream fis = new FileInputStream(new File(picPath))) {
-                avatarImage = new Image(fis);
-            } catch (Exception e) {
-                System.err.println("Failed to load user avatar: " + picPath);
-            }
-        }
-
-        if (avatarImage == null) {
-            try (InputStream defaultAvatarStream = getClass().getResourceAsStream(defaultAvatarResource)) {
-                if (defaultAvatarStream != null) {
-                    avatarImage = new Image(defaultAvatarStream);
-                } else {
-                    System.err.println("CRITICAL: Default avatar not found: " + defaultAvatarResource);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-        imageView.setImage(avatarImage);
+        ImageCache.load(imageView, picPath, defaultAvatarResource);
         if (imageView.getClip() == null || !(imageView.getClip() instanceof Circle)) {
             imageView.setClip(new Circle(20, 20, 20));
         }
@@ -357,62 +487,24 @@ public class MainController {
 
     public void loadAllChatLists() {
         if (currentUser == null) return;
-        FX.runAsync(() -> {
+        FX.<List<List<ChatListItem>>>runAsync(() -> {
             try {
-                List<User> contacts = contactService.getContacts(currentUser.getId());
-                List<ChatListItem> userItems = contacts.stream()
-                        .map(user -> {
-                            try {
-                                Optional<Message> lastMessageOpt = messageDAO.findLastMessageForChat("USER", user.getId(), currentUser.getId());
-                                int unreadCount = messageDAO.getUnreadMessageCount("USER", user.getId(), currentUser.getId());
-                                if (lastMessageOpt.isPresent()) {
-                                    String msgText = lastMessageOpt.get().getContent();
-                                    LocalDateTime ts = lastMessageOpt.get().getTimestamp();
-                                    return new ChatListItem(user, msgText, unreadCount, ts);
-                                } else {
-                                    return null;
-                                }
-                            } catch (SQLException e) {
-                                throw new RuntimeException(e);
-                            }
-                        })
-                        .filter(Objects::nonNull)
-                        .collect(Collectors.toList());
-
-                List<Group> groups = groupDAO.findByUser(currentUser.getId());
-                List<ChatListItem> groupItems = groups.stream()
-                        .map(group -> {
-                            try {
-                                Optional<Message> lastMessageOpt = messageDAO.findLastMessageForChat("GROUP", group.getId(), currentUser.getId());
-                                int unreadCount = messageDAO.getUnreadMessageCount("GROUP", group.getId(), currentUser.getId());
-                                String msgText = lastMessageOpt.map(Message::getContent).orElse("No messages yet");
-                                LocalDateTime ts = lastMessageOpt.map(Message::getTimestamp).orElse(LocalDateTime.MIN);
-                                return new ChatListItem(group, msgText, unreadCount, ts);
-                            } catch (SQLException e) {
-                                throw new RuntimeException(e);
-                            }
-                        })
-                        .collect(Collectors.toList());
-
-                List<Channel> channels = channelDAO.findSubscribedChannels(currentUser.getId());
-                List<ChatListItem> channelItems = channels.stream()
-                        .map(channel -> {
-                            try {
-                                Optional<Message> lastMessageOpt = messageDAO.findLastMessageForChat("CHANNEL", channel.getId(), currentUser.getId());
-                                int unreadCount = messageDAO.getUnreadMessageCount("CHANNEL", channel.getId(), currentUser.getId());
-                                String msgText = lastMessageOpt.map(Message::getContent).orElse("No messages yet");
-                                LocalDateTime ts = lastMessageOpt.map(Message::getTimestamp).orElse(LocalDateTime.MIN);
-                                return new ChatListItem(channel, msgText, unreadCount, ts);
-                            } catch (SQLException e) {
-                                throw new RuntimeException(e);
-                            }
-                        })
-                        .collect(Collectors.toList());
-
-                Comparator<ChatListItem> sorter = Comparator.comparing(ChatListItem::getLastMessageTimestamp).reversed();
-                userItems.sort(sorter);
-                groupItems.sort(sorter);
-                channelItems.sort(sorter);
+                List<ChatListItem> userItems = new ArrayList<>();
+                List<ChatListItem> groupItems = new ArrayList<>();
+                List<ChatListItem> channelItems = new ArrayList<>();
+                for (ChatListItem item : messageDAO.findChatList(currentUser.getId())) {
+                    if (item.getChatObject() instanceof User) {
+                        userItems.add(item);
+                    } else if (item.getChatObject() instanceof Group) {
+                        groupItems.add(item);
+                    } else {
+                        channelItems.add(item);
+                    }
+                }
+
+                userItems.sort(CHAT_LIST_ORDER);
+                groupItems.sort(CHAT_LIST_ORDER);
+                channelItems.sort(CHAT_LIST_ORDER);
 
                 return List.of(userItems, groupItems, channelItems);
 
@@ -423,9 +515,10 @@ public class MainController {
         }, (lists) -> {
             if (lists.size() == 3) {
                 Platform.runLater(() -> {
-                    usersListView.getItems().setAll((List<ChatListItem>) lists.get(0));
-                    groupsListView.getItems().setAll((List<ChatListItem>) lists.get(1));
-                    channelsListView.getItems().setAll((List<ChatListItem>) lists.get(2));
+                    usersListView.getItems().setAll(lists.get(0));
+                    groupsListView.getItems().setAll(lists.get(1));
+                    channelsListView.getItems().setAll(lists.get(2));
+                    syncRealtimeSubscriptions(lists);
                 });
             }
         }, Throwable::printStackTrace);
@@ -468,6 +561,19 @@ public class MainController {
         }
     }
 
+    /**
+     * Opens the chat the message belongs to and scrolls to it.
+     */
+    private void openMessage(Message message) {
+        String type = message.getReceiverType();
+        String id = message.getReceiverId();
+        if ("USER".equals(type) && id.equals(currentUser.getId())) {
+            id = message.getSenderId(); // A message we received: the chat is with its sender
+        }
+        openChatView(type, id);
+        if (activeChatController != null) activeChatController.revealMessage(message);
+    }
+
     public void openUserChat(User user) {
         openChatView("USER", user.getId());
     }
@@ -562,6 +668,12 @@ public class MainController {
         if (scheduler != null) {
             scheduler.shutdownNow();
         }
+        realtimeSubscriptions.values().forEach(Runnable::run);
+        realtimeSubscriptions.clear();
+        if (resyncSubscription != null) {
+            resyncSubscription.run();
+            resyncSubscription = null;
+        }
     }
 }
 
@@ -3,11 +3,11 @@ package com.telegramapp.ui.controllers;
 import com.telegramapp.model.User;
 import com.telegramapp.service.ContactService;
 import com.telegramapp.util.FX;
+import com.telegramapp.util.ImageCache;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
@@ -15,10 +15,7 @@ import javafx.scene.shape.Circle;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Optional;
@@ -278,26 +275,7 @@ public class ManageContactsController {
 
     private void loadAvatar(User user, ImageView imageView) {
         if (user == null || imageView == null) return;
-        String picPath = user.getProfilePicPath();
-        Image avatarImage = null;
-        if (picPath != null && !picPath.isBlank()) {
-            try (FileInputStream fis = new FileInputStream(new File(picPath))) {
-                avatarImage = new Image(fis);
-            } catch (Exception e) {
-                // Fallback to default
-            }
-        }
-
-        if (avatarImage == null) {
-            try (InputStream defaultAvatarStream = getClass().getResourceAsStream("/assets/default_avatar.png")) {
-                if (defaultAvatarStream != null) {
-                    avatarImage = new Image(defaultAvatarStream);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-        imageView.setImage(avatarImage);
+        ImageCache.load(imageView, user.getProfilePicPath(), "/assets/default_avatar.png");
     }
 }
 
@@ -4,6 +4,7 @@ import com.telegramapp.App;
 import com.telegramapp.dao.impl.UserDAOImpl;
 import com.telegramapp.model.User;
 import com.telegramapp.util.FX;
+import com.telegramapp.util.ImageCache;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -22,7 +23,6 @@ import javafx.stage.Window;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -190,22 +190,6 @@ public class ProfileController {
 
     private void loadAvatar(User user, ImageView imageView) {
         if (user == null || imageView == null) return;
-        String picPath = user.getProfilePicPath();
-        Image avatarImage = null;
-        if (picPath != null && !picPath.isBlank()) {
-            try (FileInputStream fis = new FileInputStream(new File(picPath))) {
-                avatarImage = new Image(fis);
-            } catch (Exception e) { /* Fallback */ }
-        }
-        if (avatarImage == null) {
-            try (InputStream defaultAvatarStream = getClass().getResourceAsStream("/assets/default_avatar.png")) {
-                if (defaultAvatarStream != null) {
-                    avatarImage = new Image(defaultAvatarStream);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-        imageView.setImage(avatarImage);
+        ImageCache.load(imageView, user.getProfilePicPath(), "/assets/default_avatar.png");
     }
 }
@@ -0,0 +1,261 @@
+package com.telegramapp.util;
+
+import com.telegramapp.model.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The newest messages of one conversation on the client's disk, so a chat opens without waiting
+ * for the database. Two files per conversation:
+ * <ul>
+ *   <li>&lt;id&gt;.log: append-only records (length, CRC32, version, message). A message that changed is appended
+ *   again and the later record wins. Read memory-mapped; a torn record at the end (crash during
+ *   an append) ends the log and is overwritten by the next append.</li>
+ *   <li>&lt;id&gt;.cursor: the seq up to which the log holds every message. It is only advanced after
+ *   the records are on disk, so the log never claims messages it does not have.</li>
+ * </ul>
+ * The log is rewritten with only the newest messages once it holds twice as many records as are kept.
+ */
+public final class ConversationCache {
+    private static final String BASE_DIR = System.getProperty("user.home") + File.separator + ".telegram-clone" + File.separator + "cache";
+    private static final int MAX_MESSAGES = Integer.parseInt(Config.get("cache.messages.per.chat", "200"));
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private static final Map<Path, ConversationCache> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Cached messages, oldest first, and the sync cursor; cursor -1 means nothing is cached.
+     */
+    public record Snapshot(List<Message> messages, long cursor) { }
+
+    private final Path log;
+    private final Path cursorFile;
+    private final String conversationId;
+
+    // In memory after the first load; the files are only read once per run.
+    private TreeMap<Long, Message> bySeq;
+    private long cursor = -1;
+    private long validBytes;
+    private int records;
+
+    private ConversationCache(Path dir, String conversationId) {
+        String name = conversationId.replace(':', '_');
+        this.log = dir.resolve(name + ".log");
+        this.cursorFile = dir.resolve(name + ".cursor");
+        this.conversationId = conversationId;
+    }
+
+    /**
+     * The cache of a conversation as seen by one user; every caller gets the same instance.
+     */
+    public static ConversationCache forChat(String userId, String conversationId) {
+        Path dir = Path.of(BASE_DIR, userId);
+        return instances.computeIfAbsent(dir.resolve(conversationId), key -> new ConversationCache(dir, conversationId));
+    }
+
+    // A private instance on the given directory, for tests.
+    static ConversationCache open(Path dir, String conversationId) {
+        return new ConversationCache(dir, conversationId);
+    }
+
+    public synchronized Snapshot load() {
+        try {
+            ensureLoaded();
+        } catch (IOException e) {
+            // A cache that cannot be read is treated as empty; the chat falls back to the database.
+            System.err.println("Could not read message cache " + log + ": " + e.getMessage());
+            bySeq = new TreeMap<>();
+            cursor = -1;
+        }
+        return new Snapshot(new ArrayList<>(bySeq.values()), cursor);
+    }
+
+    /**
+     * Stores messages fetched from the server and moves the cursor to newCursor: every message up to
+     * it must be in this batch or already cached.
+     */
+    public synchronized void append(Collection<Message> messages, long newCursor) {
+        try {
+            ensureLoaded();
+            if (!messages.isEmpty()) {
+                writeRecords(messages);
+                messages.forEach(m -> bySeq.put(m.getSeq(), m));
+            }
+            if (newCursor > cursor) writeCursor(newCursor);
+            trim();
+        } catch (IOException e) {
+            System.err.println("Could not write message cache " + log + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops everything cached and starts over with the given messages, which hold every message up
+     * to newCursor that is kept.
+     */
+    public synchronized void replace(Collection<Message> messages, long newCursor) {
+        try {
+            bySeq = new TreeMap<>();
+            messages.forEach(m -> bySeq.put(m.getSeq(), m));
+            cursor = -1;
+            rewriteLog();
+            // Only after the new log is in place; until then the old cursor disowns the new records.
+            writeCursor(newCursor);
+        } catch (IOException e) {
+            System.err.println("Could not write message cache " + log + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the cached copy of a message that was edited or deleted; ignored if it is not cached.
+     */
+    public synchronized void update(Message message) {
+        try {
+            ensureLoaded();
+            Message cached = bySeq.get(message.getSeq());
+            if (cached == null || !cached.getId().equals(message.getId())) return;
+            writeRecords(List.of(message));
+            bySeq.put(message.getSeq(), message);
+        } catch (IOException e) {
+            System.err.println("Could not write message cache " + log + ": " + e.getMessage());
+        }
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (bySeq != null) return;
+        TreeMap<Long, Message> loaded = new TreeMap<>();
+        long valid = 0;
+        int count = 0;
+        long storedCursor = readCursor();
+        if (storedCursor >= 0 && Files.exists(log)) {
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                CRC32 crc = new CRC32();
+                while (data.remaining() >= RECORD_HEADER_BYTES) {
+                    int length = data.getInt();
+                    int checksum = data.getInt();
+                    if (length <= 0 || length > data.remaining()) break;
+                    ByteBuffer payload = data.slice(data.position(), length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != checksum) break;
+                    byte[] bytes = new byte[length];
+                    payload.get(bytes);
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                    long version = in.readLong();
+                    Message m = MessageCodec.read(in, conversationId);
+                    m.setVersion(version);
+                    loaded.put(m.getSeq(), m);
+                    data.position(data.position() + length);
+                    valid = data.position();
+                    count++;
+                }
+            }
+        }
+        // Only what the cursor vouches for; anything above it was appended by a write that did not finish.
+        loaded.tailMap(storedCursor, false).clear();
+        boolean contiguous = loaded.isEmpty()
+                ? storedCursor == 0
+                : loaded.lastKey() == storedCursor && loaded.lastKey() - loaded.firstKey() + 1 == loaded.size();
+        if (!contiguous) {
+            // The log lost records the cursor covers; start over rather than show a chat with holes.
+            loaded.clear();
+            storedCursor = -1;
+        }
+        bySeq = loaded;
+        cursor = storedCursor;
+        validBytes = valid;
+        records = count;
+    }
+
+    private void writeRecords(Collection<Message> messages) throws IOException {
+        validBytes = appendRecords(log, validBytes, messages);
+        records += messages.size();
+    }
+
+    /**
+     * Writes the records at offset (dropping anything after it, such as a torn record) and returns the new end.
+     */
+    private static long appendRecords(Path file, long offset, Collection<Message> messages) throws IOException {
+        Files.createDirectories(file.getParent());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        for (Message m : messages) {
+            record.reset();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeLong(m.getVersion());
+            MessageCodec.write(recordOut, m);
+            byte[] payload = record.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() > offset) channel.truncate(offset);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            long pos = offset;
+            while (buffer.hasRemaining()) {
+                pos += channel.write(buffer, pos);
+            }
+            channel.force(false);
+            return pos;
+        }
+    }
+
+    private long readCursor() throws IOException {
+        if (!Files.exists(cursorFile)) return -1;
+        byte[] bytes = Files.readAllBytes(cursorFile);
+        return bytes.length == Long.BYTES ? ByteBuffer.wrap(bytes).getLong() : -1;
+    }
+
+    private void writeCursor(long newCursor) throws IOException {
+        Files.createDirectories(cursorFile.getParent());
+        Path tmp = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+        Files.write(tmp, ByteBuffer.allocate(Long.BYTES).putLong(newCursor).array());
+        Files.move(tmp, cursorFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        cursor = newCursor;
+    }
+
+    /**
+     * Keeps the newest MAX_MESSAGES; the log is compacted once it carries as many stale records again.
+     */
+    private void trim() throws IOException {
+        while (bySeq.size() > MAX_MESSAGES) {
+            bySeq.pollFirstEntry();
+        }
+        if (records <= 2 * MAX_MESSAGES) return;
+        rewriteLog();
+    }
+
+    private void rewriteLog() throws IOException {
+        // The new log is written aside and swapped in, so a crash leaves either the old or the new one.
+        Path tmp = log.resolveSibling(log.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        long end = appendRecords(tmp, 0, bySeq.values());
+        Files.move(tmp, log, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        validBytes = end;
+        records = bySeq.size();
+    }
+}
@@ -0,0 +1,127 @@
+package com.telegramapp.util;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.io.File;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide LRU cache of decoded images, keyed by source and target size. Files are decoded
+ * in the background at display size; until a decode finishes, views show a placeholder.
+ */
+public class ImageCache {
+    private static final int MAX_ENTRIES = Integer.parseInt(Config.get("image.cache.entries", "300"));
+    private static final String VIEW_KEY = "image-cache.key";
+
+    private static final Map<String, Image> CACHE = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ImageCache() { }
+
+    /**
+     * Image for a file on disk, decoded asynchronously at width x height (0 keeps the aspect ratio).
+     * The returned image may still be loading; check {@link Image#getProgress()}. A file that failed
+     * to decode stays cached in its failed state, so views showing it are not decoded again and again.
+     */
+    public static Image file(String path, double width, double height) {
+        String key = path + "@" + width + "x" + height;
+        synchronized (CACHE) {
+            Image image = CACHE.get(key);
+            if (image == null) {
+                image = new Image(new File(path).toURI().toString(), width, height, true, true, true);
+                CACHE.put(key, image);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Forgets every size of the file, e.g. a failed decode of a file that has been written since.
+     */
+    public static void evict(String path) {
+        String prefix = path + "@";
+        synchronized (CACHE) {
+            CACHE.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Bundled image such as a default avatar. These are small, so they are decoded right away.
+     */
+    public static Image resource(String resource, double width, double height) {
+        String key = "classpath:" + resource + "@" + width + "x" + height;
+        synchronized (CACHE) {
+            Image image = CACHE.get(key);
+            if (image == null) {
+                URL url = ImageCache.class.getResource(resource);
+                if (url == null) {
+                    System.err.println("CRITICAL: Image resource not found: " + resource);
+                    return null;
+                }
+                image = new Image(url.toExternalForm(), width, height, true, true, false);
+                CACHE.put(key, image);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Shows the file at path in the view, sized to the view's fit size. The fallback resource is
+     * shown while decoding and when path is empty or unreadable. Safe to use from recycled cells:
+     * a decode that finishes after the view was rebound to another image is ignored.
+     */
+    public static void load(ImageView view, String path, String fallbackResource) {
+        load(view, path, fallbackResource, null);
+    }
+
+    /**
+     * Like {@link #load(ImageView, String, String)}, and runs onFailure on the FX thread when path
+     * cannot be decoded (e.g. because it does not exist) while the view still shows it. That is found
+     * out by the background decode, so the caller does not have to check the disk on the FX thread.
+     */
+    public static void load(ImageView view, String path, String fallbackResource, Runnable onFailure) {
+        double width = view.getFitWidth();
+        double height = view.getFitHeight();
+        Image placeholder = fallbackResource == null ? null : resource(fallbackResource, width, height);
+        if (path == null || path.isBlank()) {
+            view.getProperties().put(VIEW_KEY, fallbackResource);
+            view.setImage(placeholder);
+            return;
+        }
+
+        Image image = file(path, width, height);
+        view.getProperties().put(VIEW_KEY, path);
+        if (image.getProgress() >= 1.0 || image.isError()) {
+            view.setImage(image.isError() ? placeholder : image);
+            if (image.isError() && onFailure != null) onFailure.run();
+            return;
+        }
+        view.setImage(placeholder);
+        // Removes itself once the decode settles, so cached images do not keep old views alive.
+        InvalidationListener onDone = new InvalidationListener() {
+            @Override
+            public void invalidated(Observable observable) {
+                if (image.getProgress() < 1.0 && !image.isError()) return;
+                image.progressProperty().removeListener(this);
+                image.errorProperty().removeListener(this);
+                if (!path.equals(view.getProperties().get(VIEW_KEY))) return;
+                if (!image.isError()) {
+                    view.setImage(image);
+                } else if (onFailure != null) {
+                    onFailure.run();
+                }
+            }
+        };
+        image.progressProperty().addListener(onDone);
+        image.errorProperty().addListener(onDone);
+    }
+}
@@ -1,24 +1,282 @@
 package com.telegramapp.util;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.UUID;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class ImageStorage {
     private static final String BASE_DIR = System.getProperty("user.home") + File.separator + ".telegram-clone" + File.separator + "attachments";
+    private static final String THUMB_DIR = BASE_DIR + File.separator + "thumbs";
+    private static final String TMP_DIR = BASE_DIR + File.separator + "tmp";
+
+    private static final long MAX_ATTACHMENT_BYTES = Long.parseLong(Config.get("attachments.max.bytes", String.valueOf(4L << 30)));
+    private static final long CHUNK_BYTES = 8L << 20;
+    private static final long CHECKPOINT_BYTES = 64L << 20;
+
+    /** Width of the rendition shown in chat bubbles (twice the 200px display width, for HiDPI screens). */
+    public static final int CHAT_THUMB_WIDTH = 400;
+
+    /**
+     * Receives byte counts as an ingest advances. Called on the ingesting thread.
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesDone, long bytesTotal);
+    }
 
     public static String saveAttachment(File source) throws IOException {
+        return saveAttachment(source, null);
+    }
+
+    /**
+     * Stores the file under its SHA-256 (attachments/ab/cd/&lt;hash&gt;.ext) and returns that path.
+     * Identical content is stored once: if the blob already exists the copy is discarded.
+     * <p>
+     * The source is copied in memory-mapped chunks that are hashed on the way through, so large
+     * files never pass through the Java heap. Progress is checkpointed next to the partial copy;
+     * if an ingest of the same (unchanged) file was interrupted, it resumes where it stopped.
+     */
+    public static String saveAttachment(File source, ProgressListener progress) throws IOException {
+        long size = Files.size(source.toPath());
+        if (size > MAX_ATTACHMENT_BYTES) {
+            throw new IOException("Attachment is larger than the " + (MAX_ATTACHMENT_BYTES >> 20) + " MB limit");
+        }
+        Path tmpDir = Path.of(TMP_DIR);
+        Files.createDirectories(tmpDir);
+        String uploadKey = uploadKey(source, size);
+        Path part = tmpDir.resolve(uploadKey + ".part");
+        Path checkpoint = tmpDir.resolve(uploadKey + ".ckpt");
+
+        MessageDigest sha256 = newSha256();
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long pos = Math.min(readCheckpoint(checkpoint), out.size());
+            out.truncate(pos);
+            // The digest cannot be persisted, so rebuild it from the part already on disk.
+            digest(out, 0, pos, sha256);
+            if (progress != null) progress.onProgress(pos, size);
+
+            long sinceCheckpoint = 0;
+            while (pos < size) {
+                long len = Math.min(CHUNK_BYTES, size - pos);
+                MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                sha256.update(chunk.duplicate());
+                long writeAt = pos;
+                while (chunk.hasRemaining()) {
+                    writeAt += out.write(chunk, writeAt);
+                }
+                pos += len;
+                sinceCheckpoint += len;
+                if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                    out.force(false);
+                    writeCheckpoint(checkpoint, pos);
+                    sinceCheckpoint = 0;
+                }
+                if (progress != null) progress.onProgress(pos, size);
+            }
+            out.force(false);
+        }
+
+        String ext = extensionOf(source.getName());
+        Path target = blobPath(HexFormat.of().formatHex(sha256.digest()), ext);
+        if (Files.exists(target)) {
+            // Reset the age so the garbage collector's grace period covers the new reference.
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+            Files.deleteIfExists(part);
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.deleteIfExists(checkpoint);
+
+        if (isImage(ext)) {
+            // Render the chat preview now, while the blob is still in the page cache.
+            try {
+                ensureThumbnail(target.toString(), CHAT_THUMB_WIDTH);
+            } catch (IOException e) {
+                System.err.println("Could not create thumbnail for " + target + ": " + e.getMessage());
+            }
+        }
+        return target.toString();
+    }
+
+    public static boolean isImage(String extension) {
+        return switch (extension.toLowerCase()) {
+            case ".png", ".jpg", ".jpeg", ".gif", ".bmp" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Identifies an ingest of one particular version of a file, so a resumed copy never mixes contents.
+     */
+    private static String uploadKey(File source, long size) throws IOException {
+        String identity = source.getAbsolutePath() + "|" + size + "|" + Files.getLastModifiedTime(source.toPath()).toMillis();
+        byte[] hash = newSha256().digest(identity.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 16);
+    }
+
+    private static long readCheckpoint(Path checkpoint) {
+        try {
+            return Long.parseLong(Files.readString(checkpoint).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeCheckpoint(Path checkpoint, long committedBytes) throws IOException {
+        Files.writeString(checkpoint, Long.toString(committedBytes));
+    }
+
+    private static void digest(FileChannel channel, long from, long to, MessageDigest digest) throws IOException {
+        for (long pos = from; pos < to; pos += CHUNK_BYTES) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK_BYTES, to - pos)));
+        }
+    }
+
+    /**
+     * Two levels of 256-way sharding keep every directory small even with millions of blobs.
+     */
+    static Path blobPath(String hash, String ext) {
+        return Path.of(BASE_DIR, hash.substring(0, 2), hash.substring(2, 4), hash + ext);
+    }
+
+    /**
+     * Every stored attachment, including ones saved before the content-addressed layout.
+     * Thumbnails and in-progress uploads are not included.
+     */
+    public static List<Path> listAttachments() throws IOException {
         Path base = Path.of(BASE_DIR);
-        if (!Files.exists(base)) Files.createDirectories(base);
-        String ext = "";
-        String name = source.getName();
+        if (!Files.exists(base)) return List.of();
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(f -> !f.startsWith(THUMB_DIR) && !f.startsWith(TMP_DIR))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Removes uploads that were interrupted before the given time (epoch millis).
+     */
+    public static void deleteStaleUploads(long olderThan) throws IOException {
+        Path tmpDir = Path.of(TMP_DIR);
+        if (!Files.exists(tmpDir)) return;
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                if (Files.getLastModifiedTime(f).toMillis() < olderThan) Files.deleteIfExists(f);
+            }
+        }
+    }
+
+    /**
+     * Removes a blob and its renditions.
+     */
+    public static void deleteAttachment(Path blob) throws IOException {
+        Files.deleteIfExists(thumbnailPath(blob.toString(), CHAT_THUMB_WIDTH));
+        Files.deleteIfExists(blob);
+    }
+
+    private static String extensionOf(String name) {
         int dot = name.lastIndexOf('.');
-        if (dot > -1) ext = name.substring(dot);
-        Path target = base.resolve(UUID.randomUUID().toString() + ext);
-        Files.copy(source.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
-        return target.toString();
+        return dot > -1 ? name.substring(dot).toLowerCase() : "";
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JRE ships SHA-256
+        }
+    }
+
+    /**
+     * Where the rendition of an attachment at the given width lives. The file may not exist yet.
+     */
+    public static Path thumbnailPath(String originalPath, int width) {
+        String name = Path.of(originalPath).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > -1 ? name.substring(0, dot) : name;
+        Path dir = stem.length() >= 4 ? Path.of(THUMB_DIR, stem.substring(0, 2), stem.substring(2, 4)) : Path.of(THUMB_DIR);
+        return dir.resolve(stem + "_w" + width + ".jpg");
+    }
+
+    /**
+     * Returns the thumbnail path, rendering it first if needed (e.g. for attachments saved before
+     * thumbnails existed). Blocks on file I/O and decoding, so call it off the FX thread.
+     */
+    public static String ensureThumbnail(String originalPath, int width) throws IOException {
+        Path thumb = thumbnailPath(originalPath, width);
+        if (Files.exists(thumb)) return thumb.toString();
+
+        BufferedImage source = readSubsampled(new File(originalPath), width);
+        if (source == null) throw new IOException("Unsupported image format: " + originalPath);
+
+        int targetWidth = Math.min(width, source.getWidth());
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * (targetWidth / (double) source.getWidth())));
+        BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE); // JPEG has no alpha; flatten transparent PNGs onto white
+            g.fillRect(0, 0, targetWidth, targetHeight);
+            g.drawImage(source, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            g.dispose();
+        }
+
+        Files.createDirectories(thumb.getParent());
+        // Write under a temporary name and move into place, so concurrent callers never see a partial file.
+        Path tmp = Files.createTempFile(thumb.getParent(), "thumb", ".tmp");
+        try {
+            ImageIO.write(scaled, "jpg", tmp.toFile());
+            Files.move(tmp, thumb, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return thumb.toString();
+    }
+
+    /**
+     * Decodes only every n-th pixel when the original is much wider than needed,
+     * so a phone photo never has to be held in memory at full resolution.
+     */
+    private static BufferedImage readSubsampled(File file, int width) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1, reader.getWidth(0) / (width * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
     }
 }
@@ -0,0 +1,64 @@
+package com.telegramapp.util;
+
+import com.telegramapp.model.Message;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Binary form of a message for the files that keep messages outside the database: archive segments
+ * and the client's conversation cache. The conversation id is left out; every file holds one conversation.
+ */
+public final class MessageCodec {
+    private MessageCodec() { }
+
+    public static void write(DataOutput out, Message m) throws IOException {
+        out.writeLong(m.getSeq());
+        writeString(out, m.getId());
+        writeString(out, m.getSenderId());
+        writeString(out, m.getReceiverId());
+        writeString(out, m.getReceiverType());
+        writeString(out, m.getContent());
+        writeString(out, m.getMediaType());
+        writeString(out, m.getMediaPath());
+        // Stored as in the database, without a zone; UTC is only the encoding.
+        out.writeLong(m.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(m.getTimestamp().getNano());
+        writeString(out, m.getReadStatus());
+        writeString(out, m.getReplyToMessageId());
+    }
+
+    public static Message read(DataInput in, String conversationId) throws IOException {
+        long seq = in.readLong();
+        Message m = new Message(readString(in), readString(in), readString(in), readString(in),
+                readString(in), readString(in), readString(in),
+                LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC),
+                readString(in), readString(in));
+        m.setSeq(seq);
+        m.setConversationId(conversationId);
+        return m;
+    }
+
+    // Strings are length-prefixed UTF-8 (-1 for null); writeUTF would cap message text at 64 KB.
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,258 @@
+package com.telegramapp.util;
+
+import com.telegramapp.model.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An immutable archive file holding one conversation's messages of one month, in seq order.
+ * <p>
+ * Messages are packed into deflated blocks of {@value #BLOCK_MESSAGES}. A sparse index at the end
+ * of the file records the seq range and position of every block, so a page of history costs a
+ * binary search plus inflating the one or two blocks that hold it. Files are read memory-mapped.
+ * <pre>
+ * magic | conversation id | block... | index: count, (firstSeq, lastSeq, offset, length, rawLength)... | indexOffset | magic
+ * </pre>
+ */
+public final class MessageSegment {
+    // Every client that reads deep history needs to reach this directory (e.g. a shared mount).
+    private static final Path ARCHIVE_DIR = Path.of(Config.get("archive.dir",
+            System.getProperty("user.home") + File.separator + ".telegram-clone" + File.separator + "archive"));
+
+    private static final long MAGIC = 0x5447534547000001L; // "TGSEG" + format version 1
+    private static final int BLOCK_MESSAGES = 128;
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 8 + 4 + 4;
+    private static final int TRAILER_BYTES = 16;
+    private static final int OPEN_SEGMENTS = 32;
+
+    // Parsed indexes of recently read segments; the mappings themselves are released by the GC.
+    private static final Map<Path, MessageSegment> open = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, MessageSegment> eldest) {
+            return size() > OPEN_SEGMENTS;
+        }
+    };
+
+    private final MappedByteBuffer data;
+    private final String conversationId;
+    private final long[] firstSeq;
+    private final long[] lastSeq;
+    private final long[] offset;
+    private final int[] length;
+    private final int[] rawLength;
+
+    private MessageSegment(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        long size = data.capacity();
+        if (size < 8 + TRAILER_BYTES || data.getLong(0) != MAGIC || data.getLong((int) size - 8) != MAGIC) {
+            throw new IOException("Not a message segment");
+        }
+        ByteBuffer header = data.duplicate().position(8);
+        this.conversationId = readString(header);
+
+        ByteBuffer index = data.duplicate().position((int) data.getLong((int) size - TRAILER_BYTES));
+        int blocks = index.getInt();
+        if (blocks < 0 || index.remaining() < (long) blocks * INDEX_ENTRY_BYTES + TRAILER_BYTES) {
+            throw new IOException("Corrupt segment index");
+        }
+        firstSeq = new long[blocks];
+        lastSeq = new long[blocks];
+        offset = new long[blocks];
+        length = new int[blocks];
+        rawLength = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            firstSeq[i] = index.getLong();
+            lastSeq[i] = index.getLong();
+            offset[i] = index.getLong();
+            length[i] = index.getInt();
+            rawLength[i] = index.getInt();
+        }
+    }
+
+    /**
+     * Where the segment of a conversation's month goes, relative to the archive directory.
+     */
+    public static String relativePath(String conversationId, YearMonth month) {
+        // DM ids contain ':', which not every file system accepts.
+        return String.format("%04d_%02d", month.getYear(), month.getMonthValue()) + "/" + conversationId.replace(':', '_') + ".seg";
+    }
+
+    public static Path archivePath(String relativePath) {
+        return ARCHIVE_DIR.resolve(relativePath);
+    }
+
+    /**
+     * Opens (or re-uses) the segment at the given path.
+     */
+    public static MessageSegment open(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (open) {
+            MessageSegment segment = open.get(key);
+            if (segment != null) return segment;
+        }
+        MessageSegment segment;
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            segment = new MessageSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        synchronized (open) {
+            open.put(key, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Writes the messages (all of one conversation, ordered by seq) as a new segment. The file only
+     * appears under its final name once it is complete and on disk.
+     */
+    public static void write(Path target, String conversationId, List<Message> messages) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream headerOut = new DataOutputStream(header);
+                headerOut.writeLong(MAGIC);
+                MessageCodec.writeString(headerOut, conversationId);
+                writeFully(out, ByteBuffer.wrap(header.toByteArray()));
+
+                ByteArrayOutputStream index = new ByteArrayOutputStream();
+                DataOutputStream indexOut = new DataOutputStream(index);
+                indexOut.writeInt((messages.size() + BLOCK_MESSAGES - 1) / BLOCK_MESSAGES);
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try {
+                    for (int from = 0; from < messages.size(); from += BLOCK_MESSAGES) {
+                        List<Message> block = messages.subList(from, Math.min(from + BLOCK_MESSAGES, messages.size()));
+                        byte[] raw = encode(block);
+                        byte[] packed = deflate(deflater, raw);
+                        indexOut.writeLong(block.get(0).getSeq());
+                        indexOut.writeLong(block.get(block.size() - 1).getSeq());
+                        indexOut.writeLong(out.position());
+                        indexOut.writeInt(packed.length);
+                        indexOut.writeInt(raw.length);
+                        writeFully(out, ByteBuffer.wrap(packed));
+                    }
+                } finally {
+                    deflater.end();
+                }
+                long indexOffset = out.position();
+                indexOut.writeLong(indexOffset);
+                indexOut.writeLong(MAGIC);
+                writeFully(out, ByteBuffer.wrap(index.toByteArray()));
+                out.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        synchronized (open) {
+            open.remove(target.toAbsolutePath().normalize());
+        }
+    }
+
+    public String getConversationId() { return conversationId; }
+
+    /**
+     * Messages with fromSeq &lt;= seq &lt;= toSeq, oldest first. Only the blocks overlapping the range are inflated.
+     */
+    public List<Message> read(long fromSeq, long toSeq) throws IOException {
+        List<Message> result = new ArrayList<>();
+        // First block that can hold fromSeq: blocks are in seq order, so lastSeq is ascending too.
+        int lo = 0, hi = lastSeq.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lastSeq[mid] < fromSeq) lo = mid + 1; else hi = mid;
+        }
+        for (int block = lo; block < firstSeq.length && firstSeq[block] <= toSeq; block++) {
+            for (Message m : decode(inflate(block))) {
+                if (m.getSeq() >= fromSeq && m.getSeq() <= toSeq) result.add(m);
+            }
+        }
+        return result;
+    }
+
+    private byte[] inflate(int block) throws IOException {
+        ByteBuffer packed = data.slice((int) offset[block], length[block]);
+        byte[] raw = new byte[rawLength[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += read;
+            }
+            if (n != raw.length) throw new IOException("Truncated segment block");
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt segment block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(List<Message> block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Message m : block) {
+            MessageCodec.write(out, m);
+        }
+        return bytes.toByteArray();
+    }
+
+    private List<Message> decode(byte[] raw) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        while (in.available() > 0) {
+            messages.add(MessageCodec.read(in, conversationId));
+        }
+        return messages;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -3,15 +3,20 @@ package com.telegramapp.dao;
 import com.telegramapp.dao.impl.MessageDAOImpl;
 import com.telegramapp.dao.impl.UserDAOImpl;
 import com.telegramapp.model.Message;
+import com.telegramapp.model.MessageSearchHit;
 import com.telegramapp.model.User;
 import org.junit.jupiter.api.*;
 import com.telegramapp.db.DBConnection;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -22,7 +27,7 @@ public class MessageDAOTest {
     private MessageDAO messageDAO;
     private User sender;
     private User receiver;
-    private Message message;
+    private final List<Message> savedMessages = new ArrayList<>();
 
     @BeforeAll
     public void setup() throws SQLException {
@@ -37,16 +42,20 @@ public class MessageDAOTest {
     }
 
     @AfterEach
-    void teardown() throws SQLException {
+    void deleteMessages() throws SQLException {
         // Actually delete messages from database (not just mark as deleted)
-        if (message != null) {
-            try (Connection conn = DBConnection.getInstance().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id = ?")) {
-                ps.setString(1, message.getId());
+        try (Connection conn = DBConnection.getInstance().getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id = ?")) {
+            for (Message m : savedMessages) {
+                ps.setString(1, m.getId());
                 ps.executeUpdate();
             }
         }
+        savedMessages.clear();
+    }
 
+    @AfterAll
+    void teardown() throws SQLException {
         // Now we can safely delete users
         if (sender != null) {
             userDAO.delete(sender.getId());
@@ -59,8 +68,9 @@ public class MessageDAOTest {
     @Test
     public void testInsertAndLoadConversation() throws SQLException {
         // 1. Arrange: Create and save a new message
-        message = new Message(sender.getId(), receiver.getId(), "USER", "hello test message");
+        Message message = new Message(sender.getId(), receiver.getId(), "USER", "hello test message");
         messageDAO.save(message);
+        savedMessages.add(message);
 
         // 2. Act: Attempt to find the conversation containing the new message
         List<Message> conversation = messageDAO.findConversation("USER", receiver.getId(), sender.getId());
@@ -70,4 +80,124 @@ public class MessageDAOTest {
         assertTrue(conversation.stream().anyMatch(m -> m.getId().equals(message.getId())),
                 "The saved message should be found in the conversation.");
     }
+
+    @Test
+    public void testConversationPagesWalkBackwards() throws SQLException {
+        for (int i = 0; i < 5; i++) {
+            Message m = new Message(sender.getId(), receiver.getId(), "USER", "page message " + i);
+            messageDAO.save(m);
+            savedMessages.add(m);
+        }
+
+        List<Message> newest = messageDAO.findConversationPage("USER", receiver.getId(), sender.getId(), null, 2);
+        assertEquals(List.of(savedMessages.get(3), savedMessages.get(4)), newest, "First page should hold the two newest messages, oldest first.");
+
+        List<Message> older = messageDAO.findConversationPage("USER", receiver.getId(), sender.getId(), newest.get(0).getSeq(), 2);
+        assertEquals(List.of(savedMessages.get(1), savedMessages.get(2)), older, "Next page should continue strictly before the cursor.");
+    }
+
+    @Test
+    public void testSeqIsSharedByBothDirectionsOfADirectChat() throws SQLException {
+        Message first = new Message(sender.getId(), receiver.getId(), "USER", "ping");
+        Message reply = new Message(receiver.getId(), sender.getId(), "USER", "pong");
+        messageDAO.save(first);
+        savedMessages.add(first);
+        messageDAO.save(reply);
+        savedMessages.add(reply);
+
+        assertEquals(first.getSeq() + 1, reply.getSeq(), "Both directions of a DM should draw from one counter.");
+        assertEquals(ChatDAO.directConversationId(sender.getId(), receiver.getId()), first.getConversationId(), "The database and ChatDAO should agree on the DM key.");
+        assertEquals(first.getConversationId(), reply.getConversationId(), "Both directions of a DM should share one conversation.");
+        List<Message> after = messageDAO.findAfterSeq("USER", sender.getId(), receiver.getId(), first.getSeq());
+        assertEquals(List.of(reply), after, "findAfterSeq should return exactly the messages past the cursor.");
+    }
+
+    @Test
+    public void testReadWatermarkDrivesUnreadCountAndTicks() throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            Message m = new Message(sender.getId(), receiver.getId(), "USER", "unread " + i);
+            messageDAO.save(m);
+            savedMessages.add(m);
+        }
+        Message last = savedMessages.get(savedMessages.size() - 1);
+
+        assertEquals(0, messageDAO.getUnreadMessageCount("USER", receiver.getId(), sender.getId()), "Own messages should never count as unread.");
+        assertTrue(messageDAO.getUnreadMessageCount("USER", sender.getId(), receiver.getId()) >= 3, "Receiver should see the new messages as unread.");
+        assertTrue(messageDAO.findPeerReadSeq("USER", receiver.getId(), sender.getId()) < last.getSeq(), "Nothing is read before the receiver opens the chat.");
+
+        messageDAO.markMessagesAsRead("USER", sender.getId(), receiver.getId());
+
+        assertEquals(0, messageDAO.getUnreadMessageCount("USER", sender.getId(), receiver.getId()), "Marking read should clear the badge.");
+        assertEquals(last.getSeq(), messageDAO.findPeerReadSeq("USER", receiver.getId(), sender.getId()), "Sender should see the watermark reach its last message.");
+    }
+
+    @Test
+    public void testSaveAllAssignsSeqInSubmissionOrder() throws SQLException {
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new Message(sender.getId(), receiver.getId(), "USER", "batched " + i));
+        }
+        messageDAO.saveAll(batch);
+        savedMessages.addAll(batch);
+
+        assertEquals(batch.get(0).getSeq() + 1, batch.get(1).getSeq(), "Batched rows should get consecutive seqs.");
+        assertEquals(batch.get(1).getSeq() + 1, batch.get(2).getSeq(), "Batched rows should keep their submission order.");
+        assertEquals(batch, messageDAO.findAfterSeq("USER", receiver.getId(), sender.getId(), batch.get(0).getSeq() - 1),
+                "The whole batch should be committed.");
+    }
+
+    @Test
+    public void testSearchFindsOnlyMessagesOfTheUsersChats() throws SQLException {
+        String word = "needle" + UUID.randomUUID().toString().replace("-", "");
+        Message message = new Message(sender.getId(), receiver.getId(), "USER", "the " + word + " is here");
+        messageDAO.save(message);
+        savedMessages.add(message);
+
+        List<MessageSearchHit> hits = messageDAO.searchMessages(receiver.getId(), word, null, null, 10, null);
+        assertEquals(1, hits.size());
+        assertEquals(message.getId(), hits.get(0).getMessage().getId());
+        assertTrue(hits.get(0).getSnippet().contains(MessageSearchHit.HIGHLIGHT_START + word + MessageSearchHit.HIGHLIGHT_END));
+
+        // Someone outside the chat must not see it, and the cursor moves past the last hit
+        assertTrue(messageDAO.searchMessages(UUID.randomUUID().toString(), word, null, null, 10, null).isEmpty());
+        assertTrue(messageDAO.searchMessages(receiver.getId(), word, null, hits.get(0), 10, null).isEmpty());
+    }
+
+    @Test
+    public void testChangesSinceIncludeEditsAndDeletes() throws SQLException {
+        Message kept = new Message(sender.getId(), receiver.getId(), "USER", "original");
+        Message removed = new Message(sender.getId(), receiver.getId(), "USER", "to be deleted");
+        messageDAO.save(kept);
+        savedMessages.add(kept);
+        messageDAO.save(removed);
+        savedMessages.add(removed);
+        long synced = removed.getVersion();
+        assertTrue(messageDAO.findChangesSince("USER", receiver.getId(), sender.getId(), synced).isEmpty(), "Nothing changed yet.");
+
+        kept.setContent("edited");
+        messageDAO.update(kept);
+        messageDAO.delete(removed.getId(), sender.getId());
+
+        List<Message> changes = messageDAO.findChangesSince("USER", sender.getId(), receiver.getId(), synced);
+        assertEquals(List.of(kept, removed), changes, "Both rows should come back, in the order they changed.");
+        assertEquals("edited", changes.get(0).getContent());
+        assertEquals("DELETED", changes.get(1).getReadStatus());
+        assertEquals(synced + 2, changes.get(1).getVersion(), "Versions should stay gap-free across edits.");
+    }
+
+    @Test
+    public void testBatchedChangesSinceUsePerConversationMarks() throws SQLException {
+        Message before = new Message(sender.getId(), receiver.getId(), "USER", "already synced");
+        messageDAO.save(before);
+        savedMessages.add(before);
+        Message missed = new Message(receiver.getId(), sender.getId(), "USER", "sent during the outage");
+        messageDAO.save(missed);
+        savedMessages.add(missed);
+
+        String dm = ChatDAO.conversationIdFor("USER", receiver.getId(), sender.getId());
+        Map<String, List<Message>> changes = messageDAO.findChangesSince(Map.of(dm, before.getVersion(), "no-such-chat", 0L));
+        assertEquals(Set.of(dm), changes.keySet(), "Only conversations with changes should be returned.");
+        assertEquals(List.of(missed), changes.get(dm));
+        assertTrue(messageDAO.findChangesSince(Map.of(dm, missed.getVersion())).isEmpty(), "Nothing after the head.");
+    }
 }
@@ -5,6 +5,7 @@ import com.telegramapp.model.User;
 import org.junit.jupiter.api.*;
 
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -45,4 +46,13 @@ public class UserDAOTest {
         assertTrue(u.isPresent());
         assertEquals(testUser.getId(), u.get().getId());
     }
-}
\ No newline at end of file
+
+    @Test
+    @Order(3)
+    public void testSearchFindsUserBySubstring() throws SQLException {
+        // The query contains '_', which is escaped so it only matches itself
+        String query = UNIQUE_USERNAME.substring(4, 20);
+        List<User> found = new UserDAOImpl().searchUsersForContacts(query, "nobody");
+        assertTrue(found.stream().anyMatch(u -> u.getId().equals(testUser.getId())));
+    }
+}
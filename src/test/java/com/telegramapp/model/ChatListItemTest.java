@@ -0,0 +1,40 @@
+package com.telegramapp.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ChatListItemTest {
+
+    private static Message message(String id, String senderId, long seq, String content) {
+        Message m = new Message(id, senderId, "g1", "GROUP", content, "TEXT", null, LocalDateTime.of(2024, 3, 1, 12, 0).plusMinutes(seq), "UNREAD", null);
+        m.setSeq(seq);
+        return m;
+    }
+
+    @Test
+    public void testOwnMessagesAreNeverUnread() {
+        ChatListItem item = new ChatListItem(new Group("g1", "group", "owner"), "hello", 2, LocalDateTime.of(2024, 3, 1, 12, 0));
+        item.setLastMessageSeq(10);
+
+        item.apply(message("m11", "bob", 11, "from bob"), "alice");
+        assertEquals(3, item.getUnreadCount(), "Others' messages count from the head.");
+
+        item.apply(message("m12", "alice", 12, "from me"), "alice");
+        assertEquals(0, item.getUnreadCount(), "Sending reads the chat up to the own message.");
+        assertEquals("from me", item.getLastMessage());
+        assertEquals(12, item.getLastMessageSeq());
+        assertEquals(LocalDateTime.of(2024, 3, 1, 12, 12), item.getLastMessageTimestamp());
+
+        // Handled out of order: bob's later message first, then our own.
+        item.apply(message("m14", "bob", 14, "bob again"), "alice");
+        item.apply(message("m13", "alice", 13, "me again"), "alice");
+        assertEquals(1, item.getUnreadCount(), "Only what follows our own message is unread.");
+        assertEquals("bob again", item.getLastMessage());
+
+        item.apply(message("m12", "alice", 12, "from me (edited)"), "alice");
+        assertEquals(1, item.getUnreadCount(), "Editing an own message does not read anything.");
+    }
+}
@@ -0,0 +1,104 @@
+package com.telegramapp.util;
+
+import com.telegramapp.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConversationCacheTest {
+    private static final String CONVERSATION = "alice:bob";
+
+    private static List<Message> messages(long fromSeq, long toSeq) {
+        List<Message> messages = new ArrayList<>();
+        for (long seq = fromSeq; seq <= toSeq; seq++) {
+            Message m = new Message("m" + seq, "alice", "bob", "USER", "message " + seq,
+                    "TEXT", null, LocalDateTime.of(2024, 3, 1, 12, 0).plusMinutes(seq), "UNREAD", null);
+            m.setSeq(seq);
+            m.setVersion(seq);
+            m.setConversationId(CONVERSATION);
+            messages.add(m);
+        }
+        return messages;
+    }
+
+    private static List<Long> seqs(ConversationCache.Snapshot snapshot) {
+        return snapshot.messages().stream().map(Message::getSeq).toList();
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) seqs.add(seq);
+        return seqs;
+    }
+
+    private static void truncate(Path file, int bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    @Test
+    public void testTornAppendIsDroppedAndOverwritten(@TempDir Path dir) throws IOException {
+        ConversationCache cache = ConversationCache.open(dir, CONVERSATION);
+        cache.append(messages(1, 10), 10);
+        cache.append(messages(11, 15), 15);
+        // A crash in the middle of the second append: the last record is torn and the cursor was never moved.
+        Files.write(dir.resolve("alice_bob.cursor"), ByteBuffer.allocate(Long.BYTES).putLong(10).array());
+        truncate(dir.resolve("alice_bob.log"), 5);
+
+        ConversationCache reopened = ConversationCache.open(dir, CONVERSATION);
+        ConversationCache.Snapshot snapshot = reopened.load();
+        assertEquals(10, snapshot.cursor());
+        assertEquals(range(1, 10), seqs(snapshot), "Records above the cursor must not be shown.");
+        assertEquals("message 10", snapshot.messages().get(9).getContent());
+
+        // The next append overwrites the torn tail, and everything reads back after another restart.
+        reopened.append(messages(11, 12), 12);
+        snapshot = ConversationCache.open(dir, CONVERSATION).load();
+        assertEquals(12, snapshot.cursor());
+        assertEquals(range(1, 12), seqs(snapshot));
+        assertEquals(12, snapshot.messages().get(11).getVersion());
+    }
+
+    @Test
+    public void testLostRecordsBelowCursorResetTheCache(@TempDir Path dir) throws IOException {
+        ConversationCache cache = ConversationCache.open(dir, CONVERSATION);
+        cache.append(messages(1, 10), 10);
+        // The cursor vouches for seq 10, but its record is torn.
+        truncate(dir.resolve("alice_bob.log"), 5);
+
+        ConversationCache.Snapshot snapshot = ConversationCache.open(dir, CONVERSATION).load();
+        assertEquals(-1, snapshot.cursor(), "A cache with holes must start over.");
+        assertTrue(snapshot.messages().isEmpty());
+    }
+
+    @Test
+    public void testCompactionKeepsNewestContiguousMessages(@TempDir Path dir) throws IOException {
+        ConversationCache cache = ConversationCache.open(dir, CONVERSATION);
+        for (long from = 1; from <= 450; from += 50) {
+            cache.append(messages(from, from + 49), from + 49);
+        }
+        Message edited = messages(300, 300).get(0);
+        edited.setContent("edited");
+        edited.setVersion(451);
+        cache.update(edited);
+
+        ConversationCache.Snapshot snapshot = ConversationCache.open(dir, CONVERSATION).load();
+        assertEquals(450, snapshot.cursor());
+        assertEquals(range(251, 450), seqs(snapshot));
+        assertEquals("edited", snapshot.messages().get(49).getContent(), "The later record of a message wins.");
+        assertEquals(451, snapshot.messages().get(49).getVersion());
+    }
+}
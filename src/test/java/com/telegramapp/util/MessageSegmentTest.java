@@ -0,0 +1,46 @@
+package com.telegramapp.util;
+
+import com.telegramapp.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class MessageSegmentTest {
+
+    @Test
+    public void testReadsBackSeqRangeAcrossBlocks(@TempDir Path dir) throws IOException {
+        LocalDateTime start = LocalDateTime.of(2024, 3, 1, 12, 0, 0, 123_000_000);
+        List<Message> messages = new ArrayList<>();
+        for (int i = 1; i <= 300; i++) {
+            Message m = new Message("m" + i, "alice", "bob", "USER", i == 7 ? null : "message " + i,
+                    "TEXT", null, start.plusMinutes(i), "READ", i > 1 ? "m" + (i - 1) : null);
+            m.setSeq(1000 + i);
+            messages.add(m);
+        }
+        Path file = dir.resolve(MessageSegment.relativePath("alice:bob", YearMonth.of(2024, 3)));
+        MessageSegment.write(file, "alice:bob", messages);
+
+        MessageSegment segment = MessageSegment.open(file);
+        List<Message> page = segment.read(1100, 1140); // Spans the first and second block
+        assertEquals(41, page.size());
+        assertEquals(1100, page.get(0).getSeq());
+        assertEquals(1140, page.get(page.size() - 1).getSeq());
+        assertEquals("message 100", page.get(0).getContent());
+        assertEquals(start.plusMinutes(100), page.get(0).getTimestamp());
+        assertEquals("m99", page.get(0).getReplyToMessageId());
+        assertEquals("alice:bob", page.get(0).getConversationId());
+
+        Message withoutText = segment.read(1007, 1007).get(0);
+        assertNull(withoutText.getContent());
+        assertEquals(0, segment.read(1301, 2000).size());
+    }
+}